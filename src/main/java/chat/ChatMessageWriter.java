@@ -0,0 +1,300 @@
+package chat;
+
+import chat.model.ChatMessage;
+import chat.model.User;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 聊天消息的异步批量写入器 (write-behind)。
+ * 消息在内存中分配好ID和时间戳后立即返回给调用方用于广播，
+ * 后台线程每隔 N 毫秒或攒够 M 条消息时，用一条多行 INSERT 批量写入MySQL。
+ * 注意：消息ID由本进程分配（启动时以 MAX(id) 为起点），因此只适用于单实例部署。
+ */
+public final class ChatMessageWriter {
+
+    // 可通过系统属性调整的参数
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.messages.writeBehind", "true"));
+    private static final int BUFFER_CAPACITY = Integer.getInteger("chat.messages.writeBehind.bufferSize", 10000);
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("chat.messages.writeBehind.batchSize", 200);
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("chat.messages.writeBehind.flushIntervalMs", 50L);
+    private static final long OFFER_TIMEOUT_MS = Long.getLong("chat.messages.writeBehind.offerTimeoutMs", 1000L);
+    private static final int MAX_RETRIES = 3;
+
+    private final BlockingQueue<PendingMessage> buffer = new ArrayBlockingQueue<>(BUFFER_CAPACITY);
+    private final AtomicLong idSequence;
+    private final Thread flushThread;
+    // 已分配ID但尚未确认写入数据库的消息，按ID索引
+    private final Map<Long, ChatMessage> unflushed = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private final AtomicLong submittedMessages = new AtomicLong();
+    private final AtomicLong persistedMessages = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong failedMessages = new AtomicLong();
+    private final AtomicLong synchronousFallbacks = new AtomicLong();
+
+    private static volatile ChatMessageWriter instance;
+
+    private ChatMessageWriter() throws SQLException {
+        idSequence = new AtomicLong(DatabaseUtil.getMaxMessageId());
+        flushThread = new Thread(this::runFlushLoop, "chat-message-writer");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    /**
+     * 是否启用异步批量写入；关闭时调用方应走 DatabaseUtil 的同步写入路径
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * 获取写入器实例，首次调用时从数据库读取最大消息ID并启动后台刷盘线程
+     */
+    public static ChatMessageWriter getInstance() throws SQLException {
+        ChatMessageWriter writer = instance;
+        if (writer == null) {
+            synchronized (ChatMessageWriter.class) {
+                writer = instance;
+                if (writer == null) {
+                    writer = new ChatMessageWriter();
+                    instance = writer;
+                }
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * 应用关闭时调用；写入器从未启动过则什么也不做
+     */
+    public static void shutdownIfStarted() {
+        ChatMessageWriter writer = instance;
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * 运行指标；写入器尚未启动时返回 null
+     */
+    public static Map<String, Object> metricsIfStarted() {
+        ChatMessageWriter writer = instance;
+        return (writer != null) ? writer.metrics() : null;
+    }
+
+    /**
+     * 在内存中构造一条完整的消息并放入写入缓冲区。
+     * 缓冲区已满时最多等待 offerTimeoutMs，仍然放不进去则在调用线程上同步写入这一条，保证消息不丢失。
+     * @param roomId 房间ID
+     * @param sender 发送者（来自WebSocket会话属性）
+     * @param content 消息内容
+     * @return 待写入的消息，可通过 getPersisted() 得到落库完成的确认
+     */
+    public PendingMessage submit(int roomId, User sender, String content) {
+        // TIMESTAMP 列只保存到秒，这里截断以保证广播内容与数据库中的值完全一致
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ChatMessage message = new ChatMessage(idSequence.incrementAndGet(), sender.getId(), sender.getNickname(), content, now, false);
+        message.setRoomId(roomId);
+        PendingMessage pending = new PendingMessage(message);
+        submittedMessages.incrementAndGet();
+        unflushed.put(message.getId(), message);
+
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = buffer.offer(pending, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // 入队与 shutdown() 并发时，消息可能在 drainTo 之后才进入缓冲区，再也不会被写入。
+            // 此时把它取回来自己写；取不回说明已被后台线程或 shutdown() 取走，由它们负责写入
+            if (queued && !running && buffer.remove(pending)) {
+                queued = false;
+            }
+        }
+        if (!queued) {
+            synchronousFallbacks.incrementAndGet();
+            List<PendingMessage> single = new ArrayList<>(1);
+            single.add(pending);
+            flush(single);
+        }
+        return pending;
+    }
+
+    /**
+     * 停止后台线程，并把缓冲区中剩余的消息全部写入数据库
+     */
+    private void shutdown() {
+        running = false;
+        flushThread.interrupt();
+        try {
+            flushThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingMessage> remaining = new ArrayList<>();
+        buffer.drainTo(remaining);
+        for (int i = 0; i < remaining.size(); i += MAX_BATCH_SIZE) {
+            flush(new ArrayList<>(remaining.subList(i, Math.min(i + MAX_BATCH_SIZE, remaining.size()))));
+        }
+        System.out.println("[ChatMessageWriter] 已停止，退出前写入剩余消息 " + remaining.size() + " 条。");
+    }
+
+    private Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("bufferDepth", buffer.size());
+        metrics.put("bufferCapacity", BUFFER_CAPACITY);
+        metrics.put("submitted", submittedMessages.get());
+        metrics.put("persisted", persistedMessages.get());
+        metrics.put("batches", flushedBatches.get());
+        metrics.put("failed", failedMessages.get());
+        metrics.put("synchronousFallbacks", synchronousFallbacks.get());
+        return metrics;
+    }
+
+    private void runFlushLoop() {
+        List<PendingMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                PendingMessage first = buffer.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 从第一条消息入批开始计时，最多再等一个刷盘间隔来凑满一批
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    if (buffer.drainTo(batch, MAX_BATCH_SIZE - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingMessage next = buffer.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // shutdown() 会中断本线程，已取出的消息在下面照常写入
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch = new ArrayList<>(MAX_BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * 返回指定房间中已分配ID但可能尚未写入数据库的消息（正在写入的一批 + 缓冲区中的），
+     * 供历史消息缓存在从数据库加载时补齐。写入器未启动时返回空列表。
+     */
+    public static List<ChatMessage> pendingMessages(int roomId) {
+        ChatMessageWriter writer = instance;
+        if (writer == null) {
+            return List.of();
+        }
+        List<ChatMessage> result = new ArrayList<>();
+        for (ChatMessage message : writer.unflushed.values()) {
+            if (message.getRoomId() == roomId) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 返回指定房间中尚未落库消息的最大ID，没有时返回 0。
+     * 推进已读水位时用它补上数据库里还查不到的最新消息。
+     */
+    public static long latestPendingId(int roomId) {
+        long latest = 0L;
+        for (ChatMessage message : pendingMessages(roomId)) {
+            latest = Math.max(latest, message.getId());
+        }
+        return latest;
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            messages.add(pending.message);
+        }
+
+        SQLException lastError = null;
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            try {
+                DatabaseUtil.insertChatMessages(messages);
+                flushedBatches.incrementAndGet();
+                persistedMessages.addAndGet(batch.size());
+                for (PendingMessage pending : batch) {
+                    unflushed.remove(pending.message.getId());
+                    pending.persisted.complete(pending.message);
+                }
+                return;
+            } catch (SQLException e) {
+                lastError = e;
+                System.err.println("[ChatMessageWriter] 批量写入 " + batch.size() + " 条消息失败 (第 " + (attempt + 1) + " 次): " + e.getMessage());
+                if (attempt < MAX_RETRIES) {
+                    sleepBeforeRetry(attempt);
+                }
+            }
+        }
+
+        failedMessages.addAndGet(batch.size());
+        for (PendingMessage pending : batch) {
+            unflushed.remove(pending.message.getId());
+            pending.persisted.completeExceptionally(lastError);
+        }
+    }
+
+    private void sleepBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(100L << attempt);
+        } catch (InterruptedException e) {
+            // 正在关闭，仍然继续重试剩余次数，尽量不丢消息
+            running = false;
+        }
+    }
+
+    /**
+     * 一条已分配ID、等待写入数据库的消息
+     */
+    public static final class PendingMessage {
+        private final ChatMessage message;
+        private final CompletableFuture<ChatMessage> persisted = new CompletableFuture<>();
+
+        private PendingMessage(ChatMessage message) {
+            this.message = message;
+        }
+
+        public ChatMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * 消息成功写入数据库后完成；多次重试仍失败时以异常完成
+         */
+        public CompletableFuture<ChatMessage> getPersisted() {
+            return persisted;
+        }
+    }
+}
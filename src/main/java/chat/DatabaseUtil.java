@@ -1,24 +1,47 @@
 package chat;
 
+import chat.cache.AvatarCache;
+import chat.cache.ContactGraphCache;
+import chat.cache.RecentMessageCache;
+import chat.cache.UserSearchIndex;
 import chat.model.ChatRoom;
 import chat.model.Contact;
 import chat.model.FriendRequest;
 import chat.model.User;
+import chat.model.UserCredential;
 import chat.model.UserDetail;
+import chat.util.AvatarStore;
 import chat.util.PasswordUtil;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import chat.model.ChatMessage; // 确保导入了 ChatMessage 模型
 import java.time.LocalDateTime; // 确保导入
+import java.time.temporal.ChronoUnit;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 
 public class DatabaseUtil {
 
     private static HikariDataSource dataSource;
+    // users.avatar 列（迁移前的头像 BLOB）是否可能还存在；发现已删除后置为 false，不再查询
+    private static volatile boolean legacyAvatarColumn = true;
+
+    /**
+     * 逐行接收查询结果的回调，用于把结果写入响应。分页查询的结果不超过一页，先读完并归还连接再逐行交给它
+     */
+    public interface RowHandler<T> {
+        void handle(T row) throws IOException;
+
+        /**
+         * 查询因扫描上限提前结束、结果可能不完整时调用（在最后一行之后）。下一页应从 resumeAfter 之后继续
+         */
+        default void truncated(int resumeAfter) throws IOException {}
+    }
 
     // 静态初始化数据库连接池
     static {
@@ -63,7 +86,7 @@ public class DatabaseUtil {
                 "account VARCHAR(20) NOT NULL UNIQUE, " +
                 "password_hash VARCHAR(255) NOT NULL, " +
                 "nickname VARCHAR(50) NOT NULL, " +
-                "avatar BLOB, " +
+                "avatar_hash CHAR(64) NULL, " + // 头像文件的内容哈希，文件本身存放在 AvatarStore 中
                 "security_question VARCHAR(255) NOT NULL, " +
                 "security_answer_hash VARCHAR(255) NOT NULL, " +
                 "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
@@ -77,6 +100,144 @@ public class DatabaseUtil {
         } catch (SQLException e) {
             System.err.println("数据库表初始化失败: " + e.getMessage());
         }
+
+        // 历史消息按 (room_id, id) 做键集分页，需要对应的联合索引
+        ensureIndex("chat_messages", "idx_room_id_id", "room_id, id");
+
+        initializeReadWatermarks();
+
+        // 头像内容的 SHA-256，用作 ETag 和带版本号的头像URL；升级前的库中已有的 BLOB 头像一次性回填。
+        // 新库和已删除旧 avatar 列的库没有可回填的内容
+        if (ensureColumn("users", "avatar_hash", "CHAR(64) NULL")) {
+            try (Connection conn = dataSource.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                if (columnExists("users", "avatar")) {
+                    int rows = stmt.executeUpdate("UPDATE users SET avatar_hash = SHA2(avatar, 256) WHERE avatar IS NOT NULL AND avatar_hash IS NULL");
+                    System.out.println("已为 " + rows + " 个用户回填头像哈希。");
+                } else {
+                    legacyAvatarColumn = false;
+                }
+            } catch (SQLException e) {
+                System.err.println("回填头像哈希失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 把已经读完的一页结果交给 handler。调用时连接已经归还连接池，
+     * 向响应写入（可能因客户端读得慢而阻塞）不会占用数据库连接。
+     * 代价是一页结果会先在内存中收集成列表：页大小受各列表接口的 MAX_LIMIT 限制，
+     * 联系人和聊天室最多 501 行、通知最多 201 行、用户搜索最多 51 行（均含判断下一页用的一行）。
+     */
+    private static <T> void deliver(List<T> rows, RowHandler<T> handler) throws IOException {
+        for (T row : rows) {
+            handler.handle(row);
+        }
+    }
+
+    private static boolean columnExists(String table, String column) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, column);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() && rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * 如果表存在且缺少指定的列，则添加该列。
+     * @return 列是否存在（原本就有或刚刚添加成功）
+     */
+    private static boolean ensureColumn(String table, String column, String definition) {
+        String checkSql = "SELECT " +
+                "(SELECT COUNT(*) FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?) AS table_exists, " +
+                "(SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?) AS column_exists";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, table);
+            pstmt.setString(3, column);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt("table_exists") == 0) {
+                    return false;
+                }
+                if (rs.getInt("column_exists") > 0) {
+                    return true;
+                }
+            }
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+                System.out.println("已为 '" + table + "' 表添加列 " + column);
+                return true;
+            }
+        } catch (SQLException e) {
+            System.err.println("添加列 " + column + " 失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 创建已读水位表：每个 (房间, 读取者) 只保存一个“已读到的最大消息ID”，
+     * 房间内非该读取者发送、且ID不大于水位的消息都视为已读。
+     * 表首次创建（为空）时，根据旧的 chat_messages.is_read 标记回填水位。
+     */
+    private static void initializeReadWatermarks() {
+        String createTableSQL = "CREATE TABLE IF NOT EXISTS chat_read_watermarks (" +
+                "room_id INT NOT NULL, " +
+                "reader_id INT NOT NULL, " +
+                "last_read_message_id BIGINT NOT NULL DEFAULT 0, " +
+                "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
+                "PRIMARY KEY (room_id, reader_id)" +
+                ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4";
+        String backfillSQL = "INSERT INTO chat_read_watermarks (room_id, reader_id, last_read_message_id) " +
+                "SELECT m.room_id, rm.user_id, MAX(m.id) FROM chat_messages m " +
+                "JOIN chat_room_members rm ON rm.room_id = m.room_id AND rm.user_id != m.sender_id " +
+                "WHERE m.is_read = TRUE GROUP BY m.room_id, rm.user_id";
+
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(createTableSQL);
+            boolean empty;
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM chat_read_watermarks LIMIT 1")) {
+                empty = !rs.next();
+            }
+            if (empty) {
+                int rows = stmt.executeUpdate(backfillSQL);
+                System.out.println("已根据历史已读标记回填 " + rows + " 条已读水位记录。");
+            }
+            System.out.println("'chat_read_watermarks' 数据库表初始化完成！");
+        } catch (SQLException e) {
+            System.err.println("已读水位表初始化失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 如果表存在且尚未建立指定名称的索引，则创建该索引。
+     * MySQL 不支持 CREATE INDEX IF NOT EXISTS，所以先查 information_schema。
+     */
+    private static void ensureIndex(String table, String indexName, String columns) {
+        String checkSql = "SELECT " +
+                "(SELECT COUNT(*) FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?) AS table_exists, " +
+                "(SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ?) AS index_exists";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, table);
+            pstmt.setString(3, indexName);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next() && rs.getInt("table_exists") > 0 && rs.getInt("index_exists") == 0) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute("ALTER TABLE " + table + " ADD INDEX " + indexName + " (" + columns + ")");
+                        System.out.println("已为 '" + table + "' 表创建索引 " + indexName + " (" + columns + ")");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("创建索引 " + indexName + " 失败: " + e.getMessage());
+        }
     }
 
     /**
@@ -96,21 +257,37 @@ public class DatabaseUtil {
     }
 
     /**
-     * 注册新用户
+     * 注册新用户。头像先写入 AvatarStore，users 表只保存其哈希。
+     * @param avatarVariants ImageUtil.resizeAvatarVariants 生成的各尺寸头像
      * @return 如果注册成功返回true
+     * @throws IOException 如果头像文件写入失败
      */
-    public static boolean registerUser(String account, String password, String nickname, byte[] avatar, String question, String answer) throws SQLException {
-        String sql = "INSERT INTO users (account, password_hash, nickname, avatar, security_question, security_answer_hash) VALUES (?, ?, ?, ?, ?, ?)";
+    public static boolean registerUser(String account, String password, String nickname, Map<Integer, byte[]> avatarVariants, String question, String answer) throws SQLException, IOException {
+        String avatarHash = (avatarVariants != null) ? AvatarStore.store(avatarVariants) : null;
+        String sql = "INSERT INTO users (account, password_hash, nickname, avatar_hash, security_question, security_answer_hash) VALUES (?, ?, ?, ?, ?, ?)";
+        int userId = 0;
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             pstmt.setString(1, account);
             pstmt.setString(2, PasswordUtil.hash(password));
             pstmt.setString(3, nickname);
-            pstmt.setBytes(4, avatar);
+            pstmt.setString(4, avatarHash);
             pstmt.setString(5, question);
             pstmt.setString(6, PasswordUtil.hash(answer));
-            return pstmt.executeUpdate() > 0;
+            if (pstmt.executeUpdate() == 0) {
+                return false;
+            }
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    userId = keys.getInt(1);
+                }
+            }
         }
+        // 连接归还后再刷新搜索索引，refresh 会另取连接
+        if (userId > 0) {
+            UserSearchIndex.refresh(userId);
+        }
+        return true;
     }
 
     /**
@@ -187,6 +364,22 @@ public class DatabaseUtil {
         return false;
     }
 
+    /**
+     * 登录时升级密码哈希的工作因子。只有数据库中的哈希仍是旧值时才更新，
+     * 避免覆盖期间用户刚修改过的新密码。
+     * @return 是否更新成功
+     */
+    public static boolean updatePasswordHash(int userId, String expectedOldHash, String newHash) throws SQLException {
+        String sql = "UPDATE users SET password_hash = ? WHERE id = ? AND password_hash = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, newHash);
+            pstmt.setInt(2, userId);
+            pstmt.setString(3, expectedOldHash);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+
     /**
      * 通过验证旧密码来修改密码
      * @return 成功返回true, 否则返回false
@@ -214,8 +407,10 @@ public class DatabaseUtil {
 
     /**
      * 更新用户的昵称和/或头像
+     * @param newAvatarVariants ImageUtil.resizeAvatarVariants 生成的各尺寸头像，不更换头像时传 null
+     * @throws IOException 如果头像文件写入失败
      */
-    public static boolean updateUserProfile(int userId, String newNickname, byte[] newAvatarBytes) throws SQLException {
+    public static boolean updateUserProfile(int userId, String newNickname, Map<Integer, byte[]> newAvatarVariants) throws SQLException, IOException {
         // 根据传入参数动态构建SQL语句
         StringBuilder sql = new StringBuilder("UPDATE users SET ");
         boolean needsComma = false;
@@ -223,44 +418,156 @@ public class DatabaseUtil {
             sql.append("nickname = ?");
             needsComma = true;
         }
-        if(newAvatarBytes != null && newAvatarBytes.length > 0){
+        if(newAvatarVariants != null && !newAvatarVariants.isEmpty()){
             if(needsComma) sql.append(", ");
-            sql.append("avatar = ?");
+            sql.append("avatar_hash = ?");
         }
         sql.append(" WHERE id = ?");
 
+        boolean updated;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
             int paramIndex = 1;
             if(newNickname != null && !newNickname.isEmpty()){
                 pstmt.setString(paramIndex++, newNickname);
             }
-            if(newAvatarBytes != null && newAvatarBytes.length > 0){
-                pstmt.setBytes(paramIndex++, newAvatarBytes);
+            if(newAvatarVariants != null && !newAvatarVariants.isEmpty()){
+                pstmt.setString(paramIndex++, AvatarStore.store(newAvatarVariants));
             }
             pstmt.setInt(paramIndex, userId);
-            return pstmt.executeUpdate() > 0;
+            updated = pstmt.executeUpdate() > 0;
         }
+        if (updated && newAvatarVariants != null && !newAvatarVariants.isEmpty()) {
+            AvatarCache.invalidate(userId);
+        }
+        // 连接归还后再刷新搜索索引，refresh 会另取连接
+        if (updated) {
+            UserSearchIndex.refresh(userId);
+        }
+        return updated;
     }
 
     /**
-     * 根据用户ID获取头像
-     * @return 头像的byte数组，或null
+     * 读取头像的内容哈希，即头像文件在 AvatarStore 中的文件名
+     * @return 头像哈希；用户不存在或没有头像时返回 null
      */
-    public static byte[] getAvatar(int userId) throws SQLException {
-        String sql = "SELECT avatar FROM users WHERE id = ?";
+    public static String getAvatarHash(int userId) throws SQLException {
+        String sql = "SELECT avatar_hash FROM users WHERE id = ?";
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getBytes("avatar");
+                    return rs.getString("avatar_hash");
                 }
             }
         }
         return null;
     }
 
+    /**
+     * 读取 users.avatar 列中尚未迁移的旧头像，供迁移工具执行前的头像请求回退使用。
+     * 发现该列已删除后不再查询。
+     * @return 头像的byte数组；没有旧头像或该列已不存在时返回 null
+     */
+    public static byte[] getLegacyAvatar(int userId) throws SQLException {
+        if (!legacyAvatarColumn) {
+            return null;
+        }
+        if (!columnExists("users", "avatar")) {
+            legacyAvatarColumn = false;
+            return null;
+        }
+        String sql = "SELECT avatar FROM users WHERE id = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getBytes("avatar") : null;
+            }
+        }
+    }
+
+    /**
+     * 把 users.avatar 列中的旧头像迁移到 AvatarStore：写入文件、更新 avatar_hash 并清空 BLOB。
+     * 按主键分批处理，每批一个短事务，可以在服务运行时执行，中断后重新执行会从剩余的行继续。
+     * @param batchSize 每批处理的用户数
+     * @return 迁移的头像数；没有 avatar 列（新库或已删除）时返回 0
+     * @throws IOException 如果头像文件写入失败
+     */
+    public static int migrateAvatarBlobs(int batchSize) throws SQLException, IOException {
+        if (!columnExists("users", "avatar")) {
+            return 0;
+        }
+        String selectSql = "SELECT id, avatar FROM users WHERE id > ? AND avatar IS NOT NULL ORDER BY id LIMIT ?";
+        String updateSql = "UPDATE users SET avatar_hash = ?, avatar = NULL WHERE id = ?";
+        int migrated = 0;
+        int lastId = 0;
+        try (Connection conn = dataSource.getConnection()) {
+            while (true) {
+                List<Integer> ids = new ArrayList<>();
+                List<byte[]> avatars = new ArrayList<>();
+                try (PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+                    pstmt.setInt(1, lastId);
+                    pstmt.setInt(2, batchSize);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getInt("id"));
+                            avatars.add(rs.getBytes("avatar"));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    return migrated;
+                }
+
+                // 先写文件再更新数据库，任何时刻 avatar_hash 指向的文件都已存在
+                conn.setAutoCommit(false);
+                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        byte[] avatar = avatars.get(i);
+                        pstmt.setString(1, avatar.length > 0 ? AvatarStore.store(avatar) : null);
+                        pstmt.setInt(2, ids.get(i));
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException | IOException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+
+                // 迁移不改变头像内容和 avatar_hash（回填时用的就是同一个 SHA-256），运行中的服务端缓存无需失效
+                migrated += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                System.out.println("[DatabaseUtil] 已迁移 " + migrated + " 个头像，当前用户ID " + lastId);
+            }
+        }
+    }
+
+    /**
+     * 所有旧头像迁移完成后删除 users.avatar 列
+     * @return 是否删除了该列；仍有未迁移的头像或该列不存在时返回 false
+     */
+    public static boolean dropLegacyAvatarColumn() throws SQLException {
+        if (!columnExists("users", "avatar")) {
+            return false;
+        }
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users WHERE avatar IS NOT NULL")) {
+                if (rs.next() && rs.getLong(1) > 0) {
+                    return false;
+                }
+            }
+            stmt.execute("ALTER TABLE users DROP COLUMN avatar");
+            legacyAvatarColumn = false;
+            return true;
+        }
+    }
+
     /**
      * 内部辅助方法，用于更新密码
      */
@@ -285,34 +592,25 @@ public class DatabaseUtil {
 
 
 
-    // 在 DatabaseUtil.java 中
-
-    public static User login(String account, String password) throws SQLException {
+    /**
+     * 按账号查询登录所需的用户信息和密码哈希。
+     * 密码校验 (BCrypt) 由调用方放到专用线程池中执行，这里只做一次数据库查询。
+     * @param account 账号
+     * @return 账号不存在时返回 null
+     */
+    public static UserCredential getLoginCredential(String account) throws SQLException {
         String sql = "SELECT id, account, nickname, password_hash FROM users WHERE account = ?";
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, account);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    String passwordHash = rs.getString("password_hash");
-
-                    // =========== 关键的调试代码开始 ===========
-                    System.out.println("\n--- 登录调试信息 ---");
-                    System.out.println("请求登录的账号: [" + account + "]");
-                    System.out.println("用户输入的密码 (trim后): [" + password + "]"); // 假设您已在Servlet中添加了trim()
-                    System.out.println("数据库存储的哈希: [" + passwordHash + "]");
-                    boolean passwordsMatch = PasswordUtil.check(password, passwordHash);
-                    System.out.println("密码是否匹配 (check结果): " + passwordsMatch);
-                    System.out.println("--- 调试信息结束 ---\n");
-                    // =========== 关键的调试代码结束 ===========
-
-                    if (passwordsMatch) { // 使用我们刚刚计算的布尔值
-                        return new User(rs.getInt("id"), rs.getString("account"), rs.getString("nickname"));
-                    }
+                    return new UserCredential(rs.getInt("id"), rs.getString("account"),
+                            rs.getString("nickname"), rs.getString("password_hash"));
                 }
             }
         }
-        return null; // 验证失败
+        return null;
     }
 
     // 添加到 DatabaseUtil.java
@@ -347,18 +645,20 @@ public class DatabaseUtil {
      * @return 成功则返回UserDetail对象，失败则返回null
      */
     public static UserDetail getUserDetailsById(int userId) throws SQLException {
-        String sql = "SELECT id, account, nickname, security_question FROM users WHERE id = ?";
+        String sql = "SELECT id, account, nickname, avatar_hash, security_question FROM users WHERE id = ?";
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return new UserDetail(
+                    UserDetail detail = new UserDetail(
                             rs.getInt("id"),
                             rs.getString("account"),
                             rs.getString("nickname"),
                             rs.getString("security_question")
                     );
+                    detail.setAvatarVersion(rs.getString("avatar_hash"));
+                    return detail;
                 }
             }
         }
@@ -368,27 +668,61 @@ public class DatabaseUtil {
     // ==================== V2.0 新增方法 ====================
 
     /**
-     * 根据账号或昵称模糊搜索用户
+     * 根据账号或昵称（含昵称拼音首字母）模糊搜索用户，按用户ID升序分页。
+     * 优先使用内存索引 UserSearchIndex；索引尚未加载完成时退回 SQL 查询（不支持拼音首字母）。
      * @param currentUserId 当前登录用户的ID，用于排除自己和已是好友的用户
      * @param query 搜索关键词
-     * @return 用户列表
+     * @param afterId 只返回ID大于它的用户（上一页最后一个用户的ID），第一页传 0
+     * @param limit 最多返回的数量
+     * @param handler 按用户ID升序逐个接收结果
      */
-    public static List<User> searchUsers(int currentUserId, String query) throws SQLException {
-        List<User> users = new ArrayList<>();
-        // SQL: 查找非自己、非好友的用户
-        String sql = "SELECT id, account, nickname FROM users u " +
-                "WHERE (u.account LIKE ? OR u.nickname LIKE ?) AND u.id != ? " +
-                "AND u.id NOT IN (SELECT contact_user_id FROM contacts WHERE user_id = ?)";
+    public static void searchUsers(int currentUserId, String query, int afterId, int limit, RowHandler<User> handler) throws SQLException, IOException {
+        if (UserSearchIndex.search(currentUserId, query, afterId, limit, handler)) {
+            return;
+        }
+
+        // SQL: 查找非自己、非好友的用户（不匹配拼音首字母）
+        String sql = "SELECT id, account, nickname, avatar_hash FROM users u " +
+                "WHERE (u.account LIKE ? OR u.nickname LIKE ?) AND u.id != ? AND u.id > ? " +
+                "AND u.id NOT IN (SELECT contact_user_id FROM contacts WHERE user_id = ?) " +
+                "ORDER BY u.id LIMIT ?";
+        List<User> rows = new ArrayList<>(limit);
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             String searchQuery = "%" + query + "%";
             pstmt.setString(1, searchQuery);
             pstmt.setString(2, searchQuery);
             pstmt.setInt(3, currentUserId);
-            pstmt.setInt(4, currentUserId);
+            pstmt.setInt(4, afterId);
+            pstmt.setInt(5, currentUserId);
+            pstmt.setInt(6, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    User user = new User(rs.getInt("id"), rs.getString("account"), rs.getString("nickname"));
+                    user.setAvatarVersion(rs.getString("avatar_hash"));
+                    rows.add(user);
+                }
+            }
+        }
+        deliver(rows, handler);
+    }
+
+    /**
+     * 按用户ID升序分批读取用户，用于加载搜索索引
+     * @param afterId 上一批最后一个用户的ID，第一批传 0
+     */
+    public static List<User> getUsersAfter(int afterId, int limit) throws SQLException {
+        List<User> users = new ArrayList<>();
+        String sql = "SELECT id, account, nickname, avatar_hash FROM users WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, afterId);
+            pstmt.setInt(2, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    users.add(new User(rs.getInt("id"), rs.getString("account"), rs.getString("nickname")));
+                    User user = new User(rs.getInt("id"), rs.getString("account"), rs.getString("nickname"));
+                    user.setAvatarVersion(rs.getString("avatar_hash"));
+                    users.add(user);
                 }
             }
         }
@@ -474,9 +808,9 @@ public class DatabaseUtil {
             }
 
             // 2. 如果是接受请求，则双向添加好友关系
+            int senderId = -1;
             if ("accepted".equals(status)) {
                 String selectSql = "SELECT sender_id FROM friend_requests WHERE id = ?";
-                int senderId;
                 try (PreparedStatement selectPstmt = conn.prepareStatement(selectSql)) {
                     selectPstmt.setInt(1, requestId);
                     ResultSet rs = selectPstmt.executeQuery();
@@ -498,6 +832,9 @@ public class DatabaseUtil {
                 }
             }
             conn.commit(); // 提交事务
+            if (senderId != -1) {
+                ContactGraphCache.invalidate(currentUserId, senderId);
+            }
             return true;
         } catch (SQLException e) {
             if (conn != null) conn.rollback(); // 回滚事务
@@ -511,22 +848,30 @@ public class DatabaseUtil {
     }
 
     /**
-     * 获取用户的所有联系人
+     * 按联系人的用户ID升序分页获取用户的联系人
+     * @param afterId 只返回用户ID大于它的联系人（上一页最后一个联系人的ID），第一页传 0
+     * @param limit 最多返回的数量
+     * @param handler 连接归还后逐个接收联系人
      */
-    public static List<Contact> getContacts(int userId) throws SQLException {
-        List<Contact> contacts = new ArrayList<>();
-        String sql = "SELECT u.id, u.account, u.nickname, c.remark_name FROM users u " +
-                "JOIN contacts c ON u.id = c.contact_user_id WHERE c.user_id = ?";
+    public static void getContacts(int userId, int afterId, int limit, RowHandler<Contact> handler) throws SQLException, IOException {
+        String sql = "SELECT u.id, u.account, u.nickname, u.avatar_hash, c.remark_name FROM users u " +
+                "JOIN contacts c ON u.id = c.contact_user_id WHERE c.user_id = ? AND c.contact_user_id > ? " +
+                "ORDER BY c.contact_user_id LIMIT ?";
+        List<Contact> rows = new ArrayList<>(limit);
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
+            pstmt.setInt(2, afterId);
+            pstmt.setInt(3, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while(rs.next()){
-                    contacts.add(new Contact(rs.getInt("id"), rs.getString("account"), rs.getString("nickname"), rs.getString("remark_name")));
+                    Contact contact = new Contact(rs.getInt("id"), rs.getString("account"), rs.getString("nickname"), rs.getString("remark_name"));
+                    contact.setAvatarVersion(rs.getString("avatar_hash"));
+                    rows.add(contact);
                 }
             }
         }
-        return contacts;
+        deliver(rows, handler);
     }
 
     // 添加到 DatabaseUtil.java 文件中
@@ -585,6 +930,10 @@ public class DatabaseUtil {
             }
 
             conn.commit(); // 提交事务
+            ContactGraphCache.invalidate(userId, contactId);
+            if (roomIdToDelete != -1) {
+                RecentMessageCache.invalidate(roomIdToDelete);
+            }
             return true;
 
         } catch (SQLException e) {
@@ -609,6 +958,7 @@ public class DatabaseUtil {
      * @return 如果操作成功返回true
      */
     public static boolean updateRemark(int userId, int contactId, String remark) throws SQLException {
+        // 备注名不影响好友ID集合，ContactGraphCache 无需失效
         String sql = "UPDATE contacts SET remark_name = ? WHERE user_id = ? AND contact_user_id = ?";
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -718,33 +1068,67 @@ public class DatabaseUtil {
      * @return 消息列表，按时间从旧到新排列，方便前端渲染
      */
     public static List<ChatMessage> getMessages(int roomId, int limit) throws SQLException {
+        return getMessagesBefore(roomId, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * 键集分页获取历史消息：返回ID小于 beforeId 的最近 limit 条消息。
+     * 内层查询按 (room_id, id) 索引倒序扫描，无论翻到多早的历史，代价都与第一页相同。
+     * @param roomId 房间ID
+     * @param beforeId 游标，只返回ID小于该值的消息；传 Long.MAX_VALUE 表示从最新一条开始
+     * @param limit 获取的消息数量
+     * @return 消息列表，按ID从旧到新排列
+     */
+    public static List<ChatMessage> getMessagesBefore(int roomId, long beforeId, int limit) throws SQLException {
         List<ChatMessage> chat_messages = new ArrayList<>();
-        // 使用子查询和JOIN来获取消息内容和发送者昵称，并包含 is_read 状态
-        String sql = "SELECT m.id, m.sender_id, u.nickname, m.message_content, m.created_at, m.is_read " +
-                "FROM (SELECT * FROM chat_messages WHERE room_id = ? ORDER BY created_at DESC LIMIT ?) m " +
+        // 使用子查询和JOIN来获取消息内容和发送者昵称；已读状态由房间内其他成员的已读水位推导
+        String sql = "SELECT m.id, m.sender_id, u.nickname, m.message_content, m.created_at, " +
+                "EXISTS (SELECT 1 FROM chat_read_watermarks w WHERE w.room_id = m.room_id " +
+                "AND w.reader_id != m.sender_id AND w.last_read_message_id >= m.id) AS is_read " +
+                "FROM (SELECT id, room_id, sender_id, message_content, created_at FROM chat_messages " +
+                "WHERE room_id = ? AND id < ? ORDER BY id DESC LIMIT ?) m " +
                 "JOIN users u ON m.sender_id = u.id " +
-                "ORDER BY m.created_at ASC"; // 最终结果按时间升序，方便前端直接渲染
+                "ORDER BY m.id ASC"; // 最终结果按ID升序，方便前端直接渲染
 
         try (Connection conn = getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, roomId);
-            pstmt.setInt(2, limit);
+            pstmt.setLong(2, beforeId);
+            pstmt.setInt(3, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    chat_messages.add(new ChatMessage(
+                    ChatMessage message = new ChatMessage(
                             rs.getLong("id"),
                             rs.getInt("sender_id"),
                             rs.getString("nickname"),
                             rs.getString("message_content"),
                             rs.getTimestamp("created_at").toLocalDateTime(),
                             rs.getBoolean("is_read")
-                    ));
+                    );
+                    message.setRoomId(roomId);
+                    chat_messages.add(message);
                 }
             }
         }
         return chat_messages;
     }
 
+    /**
+     * 检查用户是否为指定房间的成员
+     * @return 是成员返回true
+     */
+    public static boolean isRoomMember(int roomId, int userId) throws SQLException {
+        String sql = "SELECT 1 FROM chat_room_members WHERE room_id = ? AND user_id = ? LIMIT 1";
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, roomId);
+            pstmt.setInt(2, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
     /**
      * [V2.0] 保存聊天消息到数据库
      * @param roomId 房间ID
@@ -763,43 +1147,53 @@ public class DatabaseUtil {
     }
 
     /**
-     * [V2.1 最终修复版] 获取与指定用户相关的所有通知
+     * [V2.1 最终修复版] 获取与指定用户相关的通知，按ID从新到旧分页
      * @param userId 当前用户ID
-     * @return 通知列表
+     * @param beforeId 只返回ID小于它的通知（上一页最后一条通知的ID），第一页传 0
+     * @param limit 最多返回的数量
+     * @param handler 按ID从新到旧逐个接收通知
      */
-    public static List<FriendRequest> getNotifications(int userId) throws SQLException {
-        List<FriendRequest> notifications = new ArrayList<>();
+    public static void getNotifications(int userId, int beforeId, int limit, RowHandler<FriendRequest> handler) throws SQLException, IOException {
 
         // 关键修复：使用别名(AS)确保UNION的两个部分的列名和类型完全一致
         String sql =
                 // 1. 查询我收到的待处理请求
-                "(SELECT fr.id, fr.sender_id AS other_user_id, u.nickname AS other_user_nickname, 'received' AS type, fr.status " +
+                "(SELECT fr.id, fr.sender_id AS other_user_id, u.nickname AS other_user_nickname, u.avatar_hash AS other_user_avatar_version, 'received' AS type, fr.status " +
                         "FROM friend_requests fr JOIN users u ON fr.sender_id = u.id " +
-                        "WHERE fr.receiver_id = ? AND fr.status = 'pending') " +
+                        "WHERE fr.receiver_id = ? AND fr.status = 'pending' AND fr.id < ? ORDER BY fr.id DESC LIMIT ?) " +
                         "UNION ALL " +
                         // 2. 查询我发出的、已被对方处理的请求
-                        "(SELECT fr.id, fr.receiver_id AS other_user_id, u.nickname AS other_user_nickname, 'sent' AS type, fr.status " +
+                        "(SELECT fr.id, fr.receiver_id AS other_user_id, u.nickname AS other_user_nickname, u.avatar_hash AS other_user_avatar_version, 'sent' AS type, fr.status " +
                         "FROM friend_requests fr JOIN users u ON fr.receiver_id = u.id " +
-                        "WHERE fr.sender_id = ? AND fr.status IN ('accepted', 'rejected')) " +
-                        "ORDER BY id DESC";
+                        "WHERE fr.sender_id = ? AND fr.status IN ('accepted', 'rejected') AND fr.id < ? ORDER BY fr.id DESC LIMIT ?) " +
+                        "ORDER BY id DESC LIMIT ?";
 
+        List<FriendRequest> rows = new ArrayList<>(limit);
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int upperBound = (beforeId > 0) ? beforeId : Integer.MAX_VALUE;
             pstmt.setInt(1, userId);
-            pstmt.setInt(2, userId);
+            pstmt.setInt(2, upperBound);
+            pstmt.setInt(3, limit);
+            pstmt.setInt(4, userId);
+            pstmt.setInt(5, upperBound);
+            pstmt.setInt(6, limit);
+            pstmt.setInt(7, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    notifications.add(new FriendRequest(
+                    FriendRequest notification = new FriendRequest(
                             rs.getInt("id"),
                             rs.getInt("other_user_id"), // 关键修复：从正确的别名列获取ID
                             rs.getString("other_user_nickname"),
                             rs.getString("type"),
                             rs.getString("status")
-                    ));
+                    );
+                    notification.setOtherUserAvatarVersion(rs.getString("other_user_avatar_version"));
+                    rows.add(notification);
                 }
             }
         }
-        return notifications;
+        deliver(rows, handler);
     }
 
     /**
@@ -862,35 +1256,45 @@ public class DatabaseUtil {
     /**
      * [V2.2] Retrieves all chat rooms for a specific user.
      * For private chats, it also fetches the partner's name and ID.
+     * Rooms are returned in ascending id order, one page at a time.
      * @param userId The ID of the current user.
-     * @return A list of ChatRoom objects.
+     * @param afterId Only rooms with a greater id are returned (the last id of the previous page); 0 for the first page.
+     * @param limit The maximum number of rooms to return.
+     * @param handler Receives each ChatRoom after the page has been read and the connection released.
      */
-    public static List<ChatRoom> getChatRoomsForUser(int userId) throws SQLException {
-        List<ChatRoom> rooms = new ArrayList<>();
+    public static void getChatRoomsForUser(int userId, int afterId, int limit, RowHandler<ChatRoom> handler) throws SQLException, IOException {
         // This complex SQL query finds all rooms a user is a member of
         // and, for private rooms, identifies the other member (the "partner").
         String sql = "SELECT r.id, r.is_private, " +
                 "(SELECT u.nickname FROM users u JOIN chat_room_members m2 ON u.id = m2.user_id WHERE m2.room_id = r.id AND m2.user_id != ?) AS partner_nickname, " +
-                "(SELECT m2.user_id FROM chat_room_members m2 WHERE m2.room_id = r.id AND m2.user_id != ?) AS partner_id " +
-                "FROM chat_rooms r JOIN chat_room_members m ON r.id = m.room_id WHERE m.user_id = ?";
+                "(SELECT m2.user_id FROM chat_room_members m2 WHERE m2.room_id = r.id AND m2.user_id != ?) AS partner_id, " +
+                "(SELECT u.avatar_hash FROM users u JOIN chat_room_members m2 ON u.id = m2.user_id WHERE m2.room_id = r.id AND m2.user_id != ?) AS partner_avatar_version " +
+                "FROM chat_rooms r JOIN chat_room_members m ON r.id = m.room_id WHERE m.user_id = ? AND r.id > ? " +
+                "ORDER BY r.id LIMIT ?";
 
+        List<ChatRoom> rows = new ArrayList<>(limit);
         try (Connection conn = dataSource.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
             pstmt.setInt(2, userId);
             pstmt.setInt(3, userId);
+            pstmt.setInt(4, userId);
+            pstmt.setInt(5, afterId);
+            pstmt.setInt(6, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    rooms.add(new ChatRoom(
+                    ChatRoom room = new ChatRoom(
                             rs.getInt("id"),
                             rs.getBoolean("is_private"),
                             rs.getString("partner_nickname"),
                             rs.getInt("partner_id")
-                    ));
+                    );
+                    room.setPartnerAvatarVersion(rs.getString("partner_avatar_version"));
+                    rows.add(room);
                 }
             }
         }
-        return rooms;
+        deliver(rows, handler);
     }
 
     // 添加到 DatabaseUtil.java
@@ -917,20 +1321,25 @@ public class DatabaseUtil {
 
     /**
      * 保存一条新消息到数据库，并返回包含数据库生成ID的完整消息对象。
+     * 发送者昵称取自内存中的 User，时间戳由服务端生成并显式写入 created_at，
+     * 因此无需在插入后再用 JOIN users 回读这一行，返回内容与回读结果完全一致。
      * @param roomId 房间ID
-     * @param senderId 发送者ID
+     * @param sender 发送者（来自WebSocket会话属性）
      * @param content 消息内容
      * @return 保存后的完整 ChatMessage 对象
      * @throws SQLException
      */
-    public static ChatMessage saveAndGetChatMessage(int roomId, int senderId, String content) throws SQLException {
-        String sql = "INSERT INTO chat_messages (room_id, sender_id, message_content) VALUES (?, ?, ?)";
+    public static ChatMessage saveAndGetChatMessage(int roomId, User sender, String content) throws SQLException {
+        String sql = "INSERT INTO chat_messages (room_id, sender_id, message_content, created_at) VALUES (?, ?, ?, ?)";
+        // TIMESTAMP 列只保存到秒，截断后与数据库中存储的值一致
+        LocalDateTime createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
 
             stmt.setInt(1, roomId);
-            stmt.setInt(2, senderId);
+            stmt.setInt(2, sender.getId());
             stmt.setString(3, content);
+            stmt.setTimestamp(4, Timestamp.valueOf(createdAt));
 
             int affectedRows = stmt.executeUpdate();
             if (affectedRows == 0) {
@@ -939,8 +1348,9 @@ public class DatabaseUtil {
 
             try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
-                    long newId = generatedKeys.getLong(1);
-                    return getMessageById(newId);
+                    ChatMessage message = new ChatMessage(generatedKeys.getLong(1), sender.getId(), sender.getNickname(), content, createdAt, false);
+                    message.setRoomId(roomId);
+                    return message;
                 } else {
                     throw new SQLException("创建消息失败，没有获取到ID。");
                 }
@@ -949,109 +1359,117 @@ public class DatabaseUtil {
     }
 
     /**
-     * 根据消息ID获取完整的 ChatMessage 对象
-     * (这是 saveAndGetChatMessage 方法中用到的一个辅助方法)
-     * @param messageId 消息ID
-     * @return 完整的 ChatMessage 对象，如果未找到则返回 null
-     * @throws SQLException
+     * 以一条多行 INSERT 批量写入聊天消息（由 ChatMessageWriter 的后台刷盘线程调用）。
+     * 消息的ID和时间戳已在内存中分配好，这里按原值写入，保证广播给客户端的内容与落库内容一致。
+     * @param messages 待写入的消息，每条消息都需设置 roomId
+     * @throws SQLException 写入失败时整批回滚并抛出
      */
-    private static ChatMessage getMessageById(long messageId) throws SQLException {
-        String sql = "SELECT m.id, m.sender_id, u.nickname, m.message_content, m.created_at, m.is_read FROM chat_messages m " +
-                "JOIN users u ON m.sender_id = u.id WHERE m.id = ?";
+    public static void insertChatMessages(List<ChatMessage> messages) throws SQLException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO chat_messages (id, room_id, sender_id, message_content, created_at) VALUES ");
+        for (int i = 0; i < messages.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+        }
         try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-            stmt.setLong(1, messageId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return new ChatMessage(
-                            rs.getLong("id"),
-                            rs.getInt("sender_id"),
-                            rs.getString("nickname"),
-                            rs.getString("message_content"),
-                            rs.getTimestamp("created_at").toLocalDateTime(),
-                            rs.getBoolean("is_read")
-                    );
-                }
+             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int paramIndex = 1;
+            for (ChatMessage message : messages) {
+                stmt.setLong(paramIndex++, message.getId());
+                stmt.setInt(paramIndex++, message.getRoomId());
+                stmt.setInt(paramIndex++, message.getSenderId());
+                stmt.setString(paramIndex++, message.getContent());
+                stmt.setTimestamp(paramIndex++, Timestamp.valueOf(message.getTimestamp()));
             }
+            stmt.executeUpdate();
         }
-        return null;
     }
 
+    /**
+     * 获取当前最大的消息ID，用于初始化内存中的消息ID分配器
+     * @return 最大消息ID，表为空时返回0
+     */
+    public static long getMaxMessageId() throws SQLException {
+        String sql = "SELECT COALESCE(MAX(id), 0) FROM chat_messages";
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
 
     /**
-     * 标记一个房间中所有指定接收者的消息为已读。
+     * 把读取者在房间中的已读水位推进到当前最新一条消息。水位只增不减。
+     * 只占用一个连接，通常只执行一条语句：新水位通过 LAST_INSERT_ID(expr) 写入 OK 包，
+     * 由 getGeneratedKeys() 直接读回。水位没有前进（影响行数为 0）时驱动可能不返回键，
+     * 这时在同一连接上查询一次现有水位，而不是把它当作“没有已读”。
      * @param roomId 房间ID
      * @param readerId 读取者ID (即消息的接收者)
+     * @param latestKnownId 调用方已知的最新消息ID（例如尚未落库的消息），水位至少推进到这里；没有时传 0
+     * @return 推进后的已读水位
      * @throws SQLException
      */
-    public static void markMessagesAsRead(int roomId, int readerId) throws SQLException {
-        // 首先获取该房间中发送消息的对方用户ID
-        int partnerId = getPartnerId(roomId, readerId);
-
-        String sql = "UPDATE chat_messages SET is_read = TRUE WHERE room_id = ? AND sender_id = ? AND is_read = FALSE";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-            stmt.setInt(1, roomId);
-            stmt.setInt(2, partnerId); // 更新对方发给我的消息
-
-            stmt.executeUpdate();
+    public static long markMessagesAsRead(int roomId, int readerId, long latestKnownId) throws SQLException {
+        // INSERT ... SELECT 不能使用 VALUES 行别名，改为给派生表起别名 new 来引用待插入的值（VALUES() 自 MySQL 8.0.20 起已弃用）
+        String sql = "INSERT INTO chat_read_watermarks (room_id, reader_id, last_read_message_id) " +
+                "SELECT * FROM (SELECT ? AS room_id, ? AS reader_id, " +
+                "LAST_INSERT_ID(GREATEST(COALESCE(MAX(id), 0), ?)) AS latest_id FROM chat_messages WHERE room_id = ?) AS new " +
+                "ON DUPLICATE KEY UPDATE last_read_message_id = " +
+                "LAST_INSERT_ID(GREATEST(chat_read_watermarks.last_read_message_id, new.latest_id))";
+        String selectSql = "SELECT last_read_message_id FROM chat_read_watermarks WHERE room_id = ? AND reader_id = ?";
+        try (Connection conn = getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setInt(1, roomId);
+                stmt.setInt(2, readerId);
+                stmt.setLong(3, latestKnownId);
+                stmt.setInt(4, roomId);
+                stmt.executeUpdate();
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    if (rs.next() && rs.getLong(1) > 0) {
+                        return rs.getLong(1);
+                    }
+                }
+            }
+            // 没有拿到键：水位未变化，或水位为 0（房间里还没有消息），以表中的实际值为准
+            try (PreparedStatement stmt = conn.prepareStatement(selectSql)) {
+                stmt.setInt(1, roomId);
+                stmt.setInt(2, readerId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }
         }
     }
 
     /**
-     * 获取一个房间中所有未读消息的ID列表。
+     * 获取一个房间中所有未读消息的ID列表，即对方发送的、ID大于读取者已读水位的消息。
      * @param roomId 房间ID
      * @param readerId 读取者ID (即消息的接收者)
      * @return 未读消息ID的列表
      * @throws SQLException
      */
-    public static List<Integer> getUnreadMessageIds(int roomId, int readerId) throws SQLException {
-        List<Integer> unreadIds = new ArrayList<>();
-        // 首先获取该房间中发送消息的对方用户ID
-        int partnerId = getPartnerId(roomId, readerId);
-
-        String sql = "SELECT id FROM chat_messages WHERE room_id = ? AND sender_id = ? AND is_read = FALSE";
+    public static List<Long> getUnreadMessageIds(int roomId, int readerId) throws SQLException {
+        List<Long> unreadIds = new ArrayList<>();
+        String sql = "SELECT id FROM chat_messages WHERE room_id = ? AND sender_id != ? AND id > " +
+                "COALESCE((SELECT last_read_message_id FROM chat_read_watermarks WHERE room_id = ? AND reader_id = ?), 0)";
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, roomId);
-            stmt.setInt(2, partnerId); // 获取对方发给我的未读消息
+            stmt.setInt(2, readerId);
+            stmt.setInt(3, roomId);
+            stmt.setInt(4, readerId);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    unreadIds.add(rs.getInt("id"));
+                    unreadIds.add(rs.getLong("id"));
                 }
             }
         }
         return unreadIds;
     }
 
-    /**
-     * 获取指定房间中另一位用户的ID。
-     * (这是一个简化版的辅助方法，你需要根据你的业务逻辑来实现)
-     * @param roomId 房间ID
-     * @param currentUserId 当前用户ID
-     * @return 另一位用户的ID
-     * @throws SQLException
-     */
-    private static int getPartnerId(int roomId, int currentUserId) throws SQLException {
-        String sql = "SELECT user_id FROM chat_room_members WHERE room_id = ? AND user_id != ?";
-        try (Connection conn = getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, roomId);
-            pstmt.setInt(2, currentUserId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("user_id");
-                }
-            }
-        }
-        throw new SQLException("无法找到房间中的另一位用户。");
-    }
-
     /**
      * 获取数据库连接
      * @return Connection
@@ -1060,21 +1478,4 @@ public class DatabaseUtil {
     public static Connection getConnection() throws SQLException {
         return dataSource.getConnection();
     }
-
-    // 在 DatabaseUtil.java 中添加或修改此方法
-    public static List<Integer> getReadMessageIdsByAuthor(int roomId, int readerId, int authorId) throws SQLException {
-        List<Integer> ids = new ArrayList<>();
-        String sql = "SELECT id FROM chat_messages WHERE room_id = ? AND sender_id = ? AND is_read = TRUE";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, roomId);
-            stmt.setInt(2, authorId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    ids.add(rs.getInt("id"));
-                }
-            }
-        }
-        return ids;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+package chat.cache;
+
+import chat.DatabaseUtil;
+import chat.util.AvatarStore;
+import chat.util.ImageUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 头像的内存缓存，按用户ID和尺寸索引，每个条目记录头像的版本号（内容哈希）。
+ * 每个用户有一个只记录版本号的条目，用于 If-None-Match 和 sendfile 输出，省去每次查询 avatar_hash；
+ * 容器不支持 sendfile 时各尺寸的头像字节也缓存在这里，避免每次读文件。
+ * 容量按字节数而不是条目数限制，超出时按最近最少使用 (LRU) 的顺序淘汰。
+ * 开启 chat.avatar.cache.offHeap 后头像存放在堆外 (direct ByteBuffer)，几百MB的头像不会拉长GC停顿。
+ * 用户更换头像时由 DatabaseUtil.updateUserProfile 调用 invalidate。
+ */
+public final class AvatarCache {
+
+    private static final long MAX_BYTES = Long.getLong("chat.avatar.cache.maxBytes", 64L * 1024 * 1024);
+    private static final boolean OFF_HEAP = Boolean.getBoolean("chat.avatar.cache.offHeap");
+    // 单个头像超过总容量的 1/16 时不缓存字节，避免一张大图挤掉大量小头像
+    private static final long MAX_ENTRY_BYTES = MAX_BYTES / 16;
+    // 每个条目除头像字节外的估算开销（键、哈希字符串、对象头）
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final int VERSION_ONLY = 0;
+
+    private static final Object lock = new Object();
+    // accessOrder = true，迭代顺序即 LRU 顺序；由 lock 保护
+    // 键为 (用户ID << 32 | 尺寸)，尺寸为 0 的条目只记录版本号
+    private static final LinkedHashMap<Long, Avatar> avatars = new LinkedHashMap<>(16, 0.75f, true);
+    private static long residentBytes;
+    // 每次失效加一；加载前后不一致说明期间头像有变化，加载结果不放入缓存
+    private static long generation;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong versionHits = new AtomicLong();
+    private static final AtomicLong versionMisses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private AvatarCache() {}
+
+    /**
+     * 获取用户当前的头像版本。缓存中的版本与 expectedVersion 不一致时视为过期，重新查询数据库。
+     * @param userId 用户ID
+     * @param expectedVersion 请求URL中的版本号，没有时传 null
+     * @return 头像哈希；用户不存在或没有头像时返回 null
+     */
+    public static String getVersion(int userId, String expectedVersion) throws SQLException {
+        long loadGeneration;
+        synchronized (lock) {
+            Avatar cached = avatars.get(key(userId, VERSION_ONLY));
+            if (cached != null && (expectedVersion == null || expectedVersion.equals(cached.version))) {
+                versionHits.incrementAndGet();
+                return cached.version;
+            }
+            loadGeneration = generation;
+        }
+        versionMisses.incrementAndGet();
+
+        String version = DatabaseUtil.getAvatarHash(userId);
+        if (version != null) {
+            synchronized (lock) {
+                if (generation == loadGeneration) {
+                    put(key(userId, VERSION_ONLY), new Avatar(version, null));
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * 获取指定版本、指定尺寸的头像内容，未缓存时从 AvatarStore 读取
+     * @param userId 用户ID
+     * @param version 头像哈希，一般由 getVersion 得到
+     * @param size ImageUtil.AVATAR_SIZES 中的一个尺寸
+     * @return 头像；文件不存在时返回 null
+     */
+    public static Avatar get(int userId, String version, int size) throws IOException {
+        long loadGeneration;
+        synchronized (lock) {
+            Avatar cached = avatars.get(key(userId, size));
+            if (cached != null && version.equals(cached.version)) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        byte[] bytes = AvatarStore.read(version, size);
+        if (bytes == null) {
+            return null;
+        }
+        Avatar avatar = new Avatar(version, bytes);
+
+        if (bytes.length <= MAX_ENTRY_BYTES) {
+            synchronized (lock) {
+                if (generation == loadGeneration) {
+                    put(key(userId, size), avatar);
+                }
+            }
+        }
+        return avatar;
+    }
+
+    /**
+     * 用户更换头像后调用
+     */
+    public static void invalidate(int userId) {
+        synchronized (lock) {
+            generation++;
+            remove(key(userId, VERSION_ONLY));
+            for (int size : ImageUtil.AVATAR_SIZES) {
+                remove(key(userId, size));
+            }
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long versionHitCount = versionHits.get();
+        long versionMissCount = versionMisses.get();
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRatio", (hitCount + missCount) == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        metrics.put("versionHits", versionHitCount);
+        metrics.put("versionMisses", versionMissCount);
+        metrics.put("versionHitRatio", (versionHitCount + versionMissCount) == 0 ? 0.0
+                : (double) versionHitCount / (versionHitCount + versionMissCount));
+        metrics.put("evictions", evictions.get());
+        synchronized (lock) {
+            metrics.put("entries", avatars.size());
+            metrics.put("residentBytes", residentBytes);
+        }
+        metrics.put("maxBytes", MAX_BYTES);
+        metrics.put("offHeap", OFF_HEAP);
+        return metrics;
+    }
+
+    private static long key(int userId, int size) {
+        return ((long) userId << 32) | size;
+    }
+
+    // 调用方需持有 lock
+    private static void remove(long key) {
+        Avatar removed = avatars.remove(key);
+        if (removed != null) {
+            residentBytes -= removed.weight();
+        }
+    }
+
+    // 调用方需持有 lock
+    private static void put(long key, Avatar avatar) {
+        Avatar previous = avatars.put(key, avatar);
+        residentBytes += avatar.weight() - (previous != null ? previous.weight() : 0);
+        Iterator<Map.Entry<Long, Avatar>> it = avatars.entrySet().iterator();
+        while (residentBytes > MAX_BYTES && it.hasNext()) {
+            Avatar eldest = it.next().getValue();
+            it.remove();
+            residentBytes -= eldest.weight();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 一个已编码的头像。内容不可变，可被多个请求同时输出。
+     */
+    public static final class Avatar {
+        private final String version;
+        private final int length;
+        private final String contentType;
+        private final byte[] heapBytes;
+        private final ByteBuffer directBytes;
+
+        private Avatar(String version, byte[] bytes) {
+            this.version = version;
+            this.length = (bytes != null) ? bytes.length : 0;
+            this.contentType = (bytes != null) ? ImageUtil.contentType(bytes) : null;
+            if (bytes == null) {
+                this.heapBytes = null;
+                this.directBytes = null;
+            } else if (OFF_HEAP) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+                buffer.put(bytes).flip();
+                this.directBytes = buffer.asReadOnlyBuffer();
+                this.heapBytes = null;
+            } else {
+                this.heapBytes = bytes;
+                this.directBytes = null;
+            }
+        }
+
+        /**
+         * 头像内容的 SHA-256，用作 ETag 和URL版本号
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            if (heapBytes != null) {
+                out.write(heapBytes);
+            } else {
+                // duplicate() 拥有独立的读写位置，多个请求可以同时输出同一个缓冲区
+                Channels.newChannel(out).write(directBytes.duplicate());
+            }
+        }
+
+        private long weight() {
+            return ENTRY_OVERHEAD + length;
+        }
+    }
+}
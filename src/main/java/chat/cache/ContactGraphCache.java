@@ -0,0 +1,111 @@
+package chat.cache;
+
+import chat.DatabaseUtil;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 好友关系的内存邻接表：用户ID -> 已排序的好友ID数组 (int[])。
+ * 在线状态广播、在线好友查询都只需要好友ID，命中缓存时不再访问数据库。
+ * 好友关系发生变化（接受好友请求、删除好友）时由 DatabaseUtil 在事务提交后调用 invalidate。
+ * 缓存的好友ID总数有上限，超出时按最近最少使用 (LRU) 的顺序淘汰。
+ */
+public final class ContactGraphCache {
+
+    private static final int MAX_TOTAL_IDS = Integer.getInteger("chat.contacts.cache.maxIds", 1_000_000);
+    // 估算内存占用用：每个条目的 LinkedHashMap.Entry + Integer 键 + int[] 对象头的大致开销
+    private static final int ENTRY_OVERHEAD_BYTES = 80;
+
+    private static final Object lock = new Object();
+    // accessOrder = true，迭代顺序即 LRU 顺序；由 lock 保护
+    private static final LinkedHashMap<Integer, int[]> adjacency = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalIds;
+    // 每次失效加一；加载前后不一致说明期间关系有变化，加载结果不放入缓存
+    private static long generation;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private ContactGraphCache() {}
+
+    /**
+     * 获取用户的好友ID（升序）。返回的数组由缓存共享，调用方不得修改。
+     */
+    public static int[] getContactIds(int userId) throws SQLException {
+        long loadGeneration;
+        synchronized (lock) {
+            int[] cached = adjacency.get(userId);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        List<Integer> loaded = DatabaseUtil.getContactIds(userId);
+        int[] ids = new int[loaded.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = loaded.get(i);
+        }
+        Arrays.sort(ids);
+
+        synchronized (lock) {
+            if (generation == loadGeneration && ids.length <= MAX_TOTAL_IDS) {
+                int[] previous = adjacency.put(userId, ids);
+                totalIds += ids.length - (previous != null ? previous.length : 0);
+                evictIfNeeded();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 好友关系变化后调用，移除相关用户的缓存
+     */
+    public static void invalidate(int... userIds) {
+        synchronized (lock) {
+            generation++;
+            for (int userId : userIds) {
+                int[] removed = adjacency.remove(userId);
+                if (removed != null) {
+                    totalIds -= removed.length;
+                }
+            }
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRatio", (hitCount + missCount) == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        metrics.put("evictions", evictions.get());
+        synchronized (lock) {
+            metrics.put("users", adjacency.size());
+            metrics.put("contactIds", totalIds);
+            metrics.put("approxBytes", totalIds * Integer.BYTES + (long) adjacency.size() * ENTRY_OVERHEAD_BYTES);
+        }
+        metrics.put("maxContactIds", MAX_TOTAL_IDS);
+        return metrics;
+    }
+
+    private static void evictIfNeeded() {
+        Iterator<Map.Entry<Integer, int[]>> it = adjacency.entrySet().iterator();
+        while (totalIds > MAX_TOTAL_IDS && it.hasNext()) {
+            int[] eldest = it.next().getValue();
+            it.remove();
+            totalIds -= eldest.length;
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package chat.cache;
+
+import chat.model.User;
+import chat.util.PinyinUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * 用户账号、昵称及昵称拼音首字母的 n-gram 倒排索引（单字 + 双字），支持子串搜索。
+ * 查询时对查询串中各个 gram 的倒排表求交集，再按用户ID升序逐个校验是否真的包含查询串，
+ * 因此结果与 LIKE '%q%' 一致，并天然支持按用户ID的游标分页。
+ * 本类不是线程安全的，由 UserSearchIndex 加锁访问。
+ */
+final class NgramIndex {
+
+    // 同一用户的各字段用它拼接，查询串中不会出现，保证匹配不会跨字段
+    private static final char SEPARATOR = '\u0000';
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Map<Integer, Postings> postings = new HashMap<>();
+    private long postingCount;
+
+    /**
+     * 添加或更新一个用户
+     */
+    void put(User user) {
+        Entry previous = entries.get(user.getId());
+        Entry entry = new Entry(user);
+        if (previous != null) {
+            if (previous.searchText.equals(entry.searchText)) {
+                entries.put(user.getId(), entry);
+                return;
+            }
+            removePostings(previous);
+        }
+        entries.put(user.getId(), entry);
+        for (int gram : grams(entry.searchText)) {
+            if (postings.computeIfAbsent(gram, g -> new Postings()).add(user.getId())) {
+                postingCount++;
+            }
+        }
+    }
+
+    void remove(int userId) {
+        Entry previous = entries.remove(userId);
+        if (previous != null) {
+            removePostings(previous);
+        }
+    }
+
+    /**
+     * 按用户ID升序查找包含查询串的用户
+     * @param query 查询串，不区分大小写
+     * @param excluded 返回 true 的用户ID被跳过（自己、已是好友的用户）
+     * @param afterId 只返回ID大于它的用户，用于分页
+     * @param limit 最多返回的数量
+     * @param maxScan 最多校验的候选数，限制冷门查询的耗时
+     */
+    SearchResult search(String query, IntPredicate excluded, int afterId, int limit, int maxScan) {
+        List<User> results = new ArrayList<>();
+        String q = normalize(query);
+        if (q.isEmpty() || limit <= 0) {
+            return new SearchResult(results, SearchResult.COMPLETE);
+        }
+
+        int[] queryGrams = grams(q);
+        Postings[] lists = new Postings[queryGrams.length];
+        for (int i = 0; i < queryGrams.length; i++) {
+            lists[i] = postings.get(queryGrams[i]);
+            if (lists[i] == null) {
+                return new SearchResult(results, SearchResult.COMPLETE);
+            }
+        }
+        // 从最短的倒排表出发，逐个检查候选是否也出现在其他 gram 的倒排表中
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        Postings shortest = lists[0];
+        int[] positions = new int[lists.length];
+        for (int i = 1; i < lists.length; i++) {
+            positions[i] = lists[i].firstAfter(afterId);
+        }
+
+        int scanned = 0;
+        int i = shortest.firstAfter(afterId);
+        candidates:
+        for (; i < shortest.size && results.size() < limit; i++) {
+            if (scanned == maxScan) {
+                // 校验数达到上限，结果可能不完整：下一页从最后校验过的候选之后继续
+                return new SearchResult(results, shortest.ids[i - 1]);
+            }
+            int userId = shortest.ids[i];
+            for (int j = 1; j < lists.length; j++) {
+                positions[j] = lists[j].seek(positions[j], userId);
+                if (positions[j] >= lists[j].size) {
+                    break candidates;
+                }
+                if (lists[j].ids[positions[j]] != userId) {
+                    continue candidates;
+                }
+            }
+            if (excluded.test(userId)) {
+                continue;
+            }
+            scanned++;
+            // 包含全部 gram 不代表包含整个查询串，仍需校验
+            Entry entry = entries.get(userId);
+            if (entry != null && entry.searchText.contains(q)) {
+                results.add(entry.toUser());
+            }
+        }
+        return new SearchResult(results, SearchResult.COMPLETE);
+    }
+
+    /**
+     * 构建完成后调用，释放倒排表的预留容量
+     */
+    void compact() {
+        for (Postings p : postings.values()) {
+            p.trim();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int gramCount() {
+        return postings.size();
+    }
+
+    long postingCount() {
+        return postingCount;
+    }
+
+    private void removePostings(Entry entry) {
+        for (int gram : grams(entry.searchText)) {
+            Postings p = postings.get(gram);
+            if (p != null && p.remove(entry.id)) {
+                postingCount--;
+                if (p.size == 0) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT).replace(String.valueOf(SEPARATOR), "");
+    }
+
+    /**
+     * 文本中所有不跨字段的单字和双字 gram（去重）。
+     * 单字编码为字符本身，双字编码为 (c1 << 16) | c2，两者不会冲突。
+     */
+    private static int[] grams(String text) {
+        int[] grams = new int[text.length() * 2];
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == SEPARATOR) {
+                continue;
+            }
+            grams[count++] = c;
+            if (i + 1 < text.length() && text.charAt(i + 1) != SEPARATOR) {
+                grams[count++] = (c << 16) | text.charAt(i + 1);
+            }
+        }
+        return Arrays.stream(grams, 0, count).distinct().toArray();
+    }
+
+    /**
+     * 一次搜索的结果。因校验数达到上限而提前结束时，resumeAfter 为最后校验过的候选ID，
+     * 此前的用户都已检查过，下一页应从它之后继续；正常结束时为 COMPLETE。
+     */
+    static final class SearchResult {
+        static final int COMPLETE = -1;
+
+        final List<User> users;
+        final int resumeAfter;
+
+        SearchResult(List<User> users, int resumeAfter) {
+            this.users = users;
+            this.resumeAfter = resumeAfter;
+        }
+
+        boolean isTruncated() {
+            return resumeAfter != COMPLETE;
+        }
+    }
+
+    private static final class Entry {
+        final int id;
+        final String account;
+        final String nickname;
+        final String avatarVersion;
+        // 小写账号 + 分隔符 + 小写昵称 + 分隔符 + 昵称拼音首字母
+        final String searchText;
+
+        Entry(User user) {
+            this.id = user.getId();
+            this.account = user.getAccount();
+            this.nickname = user.getNickname();
+            this.avatarVersion = user.getAvatarVersion();
+            this.searchText = normalize(account) + SEPARATOR + normalize(nickname) + SEPARATOR + PinyinUtil.initials(nickname);
+        }
+
+        User toUser() {
+            User user = new User(id, account, nickname);
+            user.setAvatarVersion(avatarVersion);
+            return user;
+        }
+    }
+
+    /**
+     * 按用户ID升序排列的倒排表。新注册用户的ID最大，绝大多数插入都是追加。
+     */
+    private static final class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        boolean add(int id) {
+            int index = (size == 0 || ids[size - 1] < id) ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0 && index < size) {
+                return false;
+            }
+            int insertAt = (index == size) ? size : -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            System.arraycopy(ids, insertAt, ids, insertAt + 1, size - insertAt);
+            ids[insertAt] = id;
+            size++;
+            return true;
+        }
+
+        boolean remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * 从 from 开始找第一个不小于 id 的位置（倍增后二分），找不到时返回 size
+         */
+        int seek(int from, int id) {
+            if (from >= size || ids[from] >= id) {
+                return from;
+            }
+            int step = 1;
+            int low = from;
+            int high = from + 1;
+            while (high < size && ids[high] < id) {
+                low = high;
+                step <<= 1;
+                high = low + step;
+            }
+            int index = Arrays.binarySearch(ids, low + 1, Math.min(high, size - 1) + 1, id);
+            return (index >= 0) ? index : -index - 1;
+        }
+
+        int firstAfter(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return (index >= 0) ? index + 1 : -index - 1;
+        }
+
+        void trim() {
+            if (ids.length > size) {
+                ids = Arrays.copyOf(ids, Math.max(1, size));
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package chat.cache;
+
+import chat.ChatMessageWriter;
+import chat.DatabaseUtil;
+import chat.model.ChatMessage;
+import chat.model.HistoryPage;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个房间最近 N 条消息的内存缓存（环形缓冲区）。
+ * 房间首次被访问时从数据库加载，之后每条保存成功的新消息都追加进来，已读状态变化时同步更新，
+ * 这样用户（尤其是网络不稳定频繁重连的用户）进入房间时的历史消息可以直接从内存返回。
+ * 所有房间缓存的消息总数有上限，超出时按最近最少使用 (LRU) 的顺序整房间淘汰。
+ */
+public final class RecentMessageCache {
+
+    private static final int MESSAGES_PER_ROOM = Integer.getInteger("chat.history.cache.perRoom", 50);
+    private static final int MAX_TOTAL_MESSAGES = Integer.getInteger("chat.history.cache.maxMessages", 100_000);
+
+    private static final Object lock = new Object();
+    // accessOrder = true，迭代顺序即 LRU 顺序；由 lock 保护
+    private static final LinkedHashMap<Integer, RoomHistory> rooms = new LinkedHashMap<>(16, 0.75f, true);
+    private static int totalMessages;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private RecentMessageCache() {}
+
+    /**
+     * 获取房间最近的消息，按ID从旧到新排列。未命中时从数据库加载并放入缓存。
+     * @param roomId 房间ID
+     * @param limit 最多返回的条数（不超过每个房间的缓存容量）
+     * @return 消息副本列表，调用方可以放心序列化
+     */
+    public static List<ChatMessage> getRecent(int roomId, int limit) throws SQLException {
+        if (limit > MESSAGES_PER_ROOM) {
+            // 超出缓存容量的请求直接走数据库
+            misses.incrementAndGet();
+            return DatabaseUtil.getMessages(roomId, limit);
+        }
+
+        RoomHistory room;
+        synchronized (lock) {
+            room = rooms.get(roomId);
+            if (room != null && room.loaded) {
+                hits.incrementAndGet();
+                return room.snapshot(limit);
+            }
+            if (room == null) {
+                // 先放入一个未加载的占位对象，加载期间到达的新消息会先记录在这里
+                room = new RoomHistory();
+                rooms.put(roomId, room);
+            }
+        }
+        misses.incrementAndGet();
+
+        // 同一房间只允许一个线程去数据库加载，其他线程等待后直接读取结果
+        synchronized (room.loadLock) {
+            synchronized (lock) {
+                if (room.loaded) {
+                    return room.snapshot(limit);
+                }
+            }
+            // 先取尚未落库的消息，再查数据库：两者之间刚落库的消息一定能在数据库结果中查到
+            List<ChatMessage> unflushed = ChatMessageWriter.pendingMessages(roomId);
+            List<ChatMessage> persisted;
+            try {
+                persisted = DatabaseUtil.getMessages(roomId, MESSAGES_PER_ROOM);
+            } catch (SQLException e) {
+                synchronized (lock) {
+                    if (rooms.get(roomId) == room && !room.loaded) {
+                        rooms.remove(roomId);
+                        totalMessages -= room.size;
+                    }
+                }
+                throw e;
+            }
+
+            synchronized (lock) {
+                int before = room.size;
+                room.merge(persisted, unflushed);
+                room.loaded = true;
+                if (rooms.get(roomId) == room) {
+                    totalMessages += room.size - before;
+                    evictIfNeeded();
+                }
+                return room.snapshot(limit);
+            }
+        }
+    }
+
+    /**
+     * 加载一页历史消息，并判断是否还有更早的消息。
+     * @param roomId 房间ID
+     * @param beforeId 游标，只返回ID小于该值的消息；传 Long.MAX_VALUE 表示从最新一条开始
+     * @param limit 每页条数
+     */
+    public static HistoryPage loadPage(int roomId, long beforeId, int limit) throws SQLException {
+        // 多取一条用来判断是否还有更早的消息
+        List<ChatMessage> page = getPage(roomId, beforeId, limit + 1);
+        boolean hasMore = page.size() > limit;
+        if (hasMore) {
+            page = new ArrayList<>(page.subList(page.size() - limit, page.size()));
+        }
+        return new HistoryPage(page, hasMore);
+    }
+
+    /**
+     * 获取ID小于 beforeId 的一页历史消息（键集分页），按ID从旧到新排列。
+     * 缓存中的消息足够凑满一页时直接从内存返回，否则查询数据库并补上尚未落库的消息。
+     * @param roomId 房间ID
+     * @param beforeId 游标，只返回ID小于该值的消息
+     * @param limit 每页条数
+     */
+    public static List<ChatMessage> getPage(int roomId, long beforeId, int limit) throws SQLException {
+        synchronized (lock) {
+            RoomHistory room = rooms.get(roomId);
+            if (room != null && room.loaded) {
+                List<ChatMessage> page = room.before(beforeId, limit);
+                if (page.size() == limit) {
+                    hits.incrementAndGet();
+                    return page;
+                }
+            }
+        }
+        misses.incrementAndGet();
+
+        TreeMap<Long, ChatMessage> byId = new TreeMap<>();
+        for (ChatMessage message : ChatMessageWriter.pendingMessages(roomId)) {
+            if (message.getId() < beforeId) {
+                byId.put(message.getId(), copyOf(message));
+            }
+        }
+        for (ChatMessage message : DatabaseUtil.getMessagesBefore(roomId, beforeId, limit)) {
+            byId.putIfAbsent(message.getId(), message);
+        }
+        List<ChatMessage> merged = new ArrayList<>(byId.values());
+        return new ArrayList<>(merged.subList(Math.max(0, merged.size() - limit), merged.size()));
+    }
+
+    /**
+     * 追加一条刚保存的新消息。房间未被缓存时忽略，下次访问时会从数据库完整加载。
+     */
+    public static void append(ChatMessage message) {
+        synchronized (lock) {
+            RoomHistory room = rooms.get(message.getRoomId());
+            if (room == null) {
+                return;
+            }
+            int before = room.size;
+            room.add(copyOf(message));
+            totalMessages += room.size - before;
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * 读取者的已读水位推进后，同步更新缓存中的已读标记。
+     * @param roomId 房间ID
+     * @param readerId 读取者ID，房间内非该用户发送、ID不大于水位的消息会被标记为已读
+     * @param lastReadMessageId 读取者新的已读水位
+     */
+    public static void markRead(int roomId, int readerId, long lastReadMessageId) {
+        synchronized (lock) {
+            RoomHistory room = rooms.get(roomId);
+            if (room != null) {
+                room.markRead(readerId, lastReadMessageId);
+            }
+        }
+    }
+
+    /**
+     * 移除一条已广播、但最终没能写入数据库的消息，免得之后进入房间的用户还能看到它。
+     */
+    public static void remove(int roomId, long messageId) {
+        synchronized (lock) {
+            RoomHistory room = rooms.get(roomId);
+            if (room != null && room.remove(messageId)) {
+                totalMessages--;
+            }
+        }
+    }
+
+    /**
+     * 移除房间的缓存（例如房间被删除时）
+     */
+    public static void invalidate(int roomId) {
+        synchronized (lock) {
+            RoomHistory room = rooms.remove(roomId);
+            if (room != null) {
+                totalMessages -= room.size;
+            }
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        metrics.put("hits", hitCount);
+        metrics.put("misses", missCount);
+        metrics.put("hitRatio", (hitCount + missCount) == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        metrics.put("evictions", evictions.get());
+        synchronized (lock) {
+            metrics.put("rooms", rooms.size());
+            metrics.put("messages", totalMessages);
+        }
+        metrics.put("maxMessages", MAX_TOTAL_MESSAGES);
+        return metrics;
+    }
+
+    private static void evictIfNeeded() {
+        Iterator<Map.Entry<Integer, RoomHistory>> it = rooms.entrySet().iterator();
+        // 至少保留最近使用的一个房间
+        while (totalMessages > MAX_TOTAL_MESSAGES && rooms.size() > 1 && it.hasNext()) {
+            RoomHistory eldest = it.next().getValue();
+            it.remove();
+            totalMessages -= eldest.size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static ChatMessage copyOf(ChatMessage source) {
+        ChatMessage copy = new ChatMessage(source.getId(), source.getSenderId(), source.getSenderNickname(),
+                source.getContent(), source.getTimestamp(), source.getIsRead());
+        copy.setRoomId(source.getRoomId());
+        return copy;
+    }
+
+    /**
+     * 单个房间的环形缓冲区，除 loadLock 外所有字段都由外层 lock 保护
+     */
+    private static final class RoomHistory {
+        private final Object loadLock = new Object();
+        private final ChatMessage[] ring = new ChatMessage[MESSAGES_PER_ROOM];
+        private int head; // 最旧一条消息的下标
+        private int size;
+        private boolean loaded;
+
+        void add(ChatMessage message) {
+            if (size > 0 && message.getId() <= get(size - 1).getId()) {
+                // 乱序或重复到达（如加载期间与数据库结果重叠），交给 merge 统一排序去重
+                List<ChatMessage> single = new ArrayList<>(1);
+                single.add(message);
+                merge(single, List.of());
+                return;
+            }
+            if (size < ring.length) {
+                ring[(head + size) % ring.length] = message;
+                size++;
+            } else {
+                ring[head] = message;
+                head = (head + 1) % ring.length;
+            }
+        }
+
+        ChatMessage get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        /**
+         * 合并数据库结果与尚未落库的消息，按ID去重排序后只保留最新的 N 条
+         */
+        void merge(List<ChatMessage> persisted, List<ChatMessage> unflushed) {
+            TreeMap<Long, ChatMessage> byId = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                ChatMessage existing = get(i);
+                byId.put(existing.getId(), existing);
+            }
+            for (ChatMessage message : persisted) {
+                byId.putIfAbsent(message.getId(), copyOf(message));
+            }
+            for (ChatMessage message : unflushed) {
+                byId.putIfAbsent(message.getId(), copyOf(message));
+            }
+            List<ChatMessage> merged = new ArrayList<>(byId.values());
+            int from = Math.max(0, merged.size() - ring.length);
+            head = 0;
+            size = 0;
+            Arrays.fill(ring, null);
+            for (int i = from; i < merged.size(); i++) {
+                ring[size++] = merged.get(i);
+            }
+        }
+
+        /**
+         * 删除指定ID的消息，其后的消息依次前移
+         * @return 是否找到并删除了该消息
+         */
+        boolean remove(long messageId) {
+            for (int i = 0; i < size; i++) {
+                if (get(i).getId() == messageId) {
+                    for (int j = i; j < size - 1; j++) {
+                        ring[(head + j) % ring.length] = get(j + 1);
+                    }
+                    ring[(head + size - 1) % ring.length] = null;
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void markRead(int readerId, long lastReadMessageId) {
+            for (int i = 0; i < size; i++) {
+                ChatMessage message = get(i);
+                if (message.getId() > lastReadMessageId) {
+                    break;
+                }
+                if (message.getSenderId() != readerId) {
+                    message.setIsRead(true);
+                }
+            }
+        }
+
+        /**
+         * 返回缓存中ID小于 beforeId 的最近 limit 条消息的副本
+         */
+        List<ChatMessage> before(long beforeId, int limit) {
+            int end = size;
+            while (end > 0 && get(end - 1).getId() >= beforeId) {
+                end--;
+            }
+            int start = Math.max(0, end - limit);
+            List<ChatMessage> result = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                result.add(copyOf(get(i)));
+            }
+            return result;
+        }
+
+        List<ChatMessage> snapshot(int limit) {
+            int count = Math.min(limit, size);
+            List<ChatMessage> result = new ArrayList<>(count);
+            for (int i = size - count; i < size; i++) {
+                result.add(copyOf(get(i)));
+            }
+            return result;
+        }
+    }
+}
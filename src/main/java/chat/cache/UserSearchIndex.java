@@ -0,0 +1,220 @@
+package chat.cache;
+
+import chat.DatabaseUtil;
+import chat.model.User;
+import chat.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 用户搜索的内存索引（见 NgramIndex），替代对 users 表的 LIKE '%q%' 全表扫描。
+ * 应用启动时在后台线程分批加载全部用户；加载完成前 search 返回 false，由调用方退回 SQL 查询。
+ * SQL 查询只匹配账号和昵称，不支持拼音首字母，见 isReady。
+ * 注册、修改资料后由 DatabaseUtil 调用 refresh 重新加载该用户。
+ * chat.search.index.enabled=false 时不建索引，始终走 SQL。
+ */
+public final class UserSearchIndex {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.search.index.enabled", "true"));
+    private static final int LOAD_BATCH_SIZE = Integer.getInteger("chat.search.index.batchSize", 10000);
+    private static final int MAX_SCAN = Math.max(1, Integer.getInteger("chat.search.maxScan", 100000));
+
+    private static final NgramIndex index = new NgramIndex();
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 只在持有 UserSearchIndex.class 锁时修改；搜索时直接读取，不必等待正在进行的刷新
+    private static volatile boolean ready;
+    // 以下字段由 UserSearchIndex.class 保护
+    private static Thread builder;
+    // 加载期间发生变化的用户，加载完成后统一重新读取，避免被加载线程用旧数据覆盖
+    private static final Set<Integer> pendingRefresh = new HashSet<>();
+
+    private static volatile long buildMillis = -1;
+    private static final AtomicLong searches = new AtomicLong();
+    private static final AtomicLong fallbacks = new AtomicLong();
+    private static final AtomicLong truncated = new AtomicLong();
+    private static final LatencyHistogram searchTime = new LatencyHistogram();
+
+    private UserSearchIndex() {}
+
+    /**
+     * 在后台线程中加载索引，应用启动时调用
+     */
+    public static synchronized void startBuilding() {
+        if (!ENABLED || builder != null) {
+            return;
+        }
+        builder = new Thread(UserSearchIndex::build, "user-search-index");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * 索引是否已加载完成。未完成（或 chat.search.index.enabled=false）时搜索退回 SQL，拼音首字母无法匹配
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 搜索账号、昵称或昵称拼音首字母包含查询串的用户，按用户ID升序交给 handler。
+     * 校验的候选数达到 chat.search.maxScan 时提前结束，并通过 handler.truncated 告知下一页的起点。
+     * @param currentUserId 当前用户，结果中排除自己和已是好友的用户
+     * @param afterId 只返回ID大于它的用户，用于分页
+     * @param limit 最多返回的数量
+     * @return 是否已用索引完成搜索；索引尚未就绪时返回 false，handler 不会被调用
+     */
+    public static boolean search(int currentUserId, String query, int afterId, int limit, DatabaseUtil.RowHandler<User> handler) throws SQLException, IOException {
+        if (!ready) {
+            fallbacks.incrementAndGet();
+            return false;
+        }
+        int[] contactIds = ContactGraphCache.getContactIds(currentUserId);
+        NgramIndex.SearchResult result;
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            result = index.search(query,
+                    userId -> userId == currentUserId || Arrays.binarySearch(contactIds, userId) >= 0,
+                    afterId, limit, MAX_SCAN);
+        } finally {
+            lock.readLock().unlock();
+            searches.incrementAndGet();
+            searchTime.record(System.nanoTime() - start);
+        }
+        // 释放读锁后再写响应，慢客户端不会挡住索引更新
+        for (User user : result.users) {
+            handler.handle(user);
+        }
+        if (result.isTruncated()) {
+            truncated.incrementAndGet();
+            handler.truncated(result.resumeAfter);
+        }
+        return true;
+    }
+
+    /**
+     * 用户注册或修改资料后调用，从数据库重新读取该用户。
+     * 调用方应先关闭自己的连接：这里会另取一个连接。读取失败只记录日志，不影响已经提交的注册或修改。
+     */
+    public static void refresh(int userId) {
+        if (!ENABLED) {
+            return;
+        }
+        synchronized (UserSearchIndex.class) {
+            if (!ready) {
+                if (builder != null) {
+                    pendingRefresh.add(userId);
+                }
+                return;
+            }
+            // 持有类锁读取数据库，保证同一用户的多次刷新按顺序生效；写操作很少，不影响搜索
+            try {
+                reload(userId);
+            } catch (SQLException e) {
+                System.err.println("[UserSearchIndex] 刷新用户 " + userId + " 失败，搜索结果可能暂时不是最新: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 应用关闭时调用，中断仍在进行的加载
+     */
+    public static synchronized void shutdown() {
+        if (builder != null) {
+            builder.interrupt();
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", ENABLED);
+        metrics.put("ready", ready);
+        metrics.put("buildMillis", buildMillis);
+        lock.readLock().lock();
+        try {
+            metrics.put("users", index.size());
+            metrics.put("grams", index.gramCount());
+            metrics.put("postings", index.postingCount());
+        } finally {
+            lock.readLock().unlock();
+        }
+        metrics.put("searches", searches.get());
+        // 索引未就绪时的 SQL 搜索次数，这些搜索不匹配拼音首字母
+        metrics.put("fallbacks", fallbacks.get());
+        metrics.put("truncated", truncated.get());
+        metrics.put("searchTime", searchTime.snapshot());
+        return metrics;
+    }
+
+    private static void build() {
+        long start = System.nanoTime();
+        try {
+            int lastId = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                List<User> batch = DatabaseUtil.getUsersAfter(lastId, LOAD_BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lock.writeLock().lock();
+                try {
+                    for (User user : batch) {
+                        index.put(user);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                index.compact();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            synchronized (UserSearchIndex.class) {
+                for (int userId : pendingRefresh) {
+                    reload(userId);
+                }
+                pendingRefresh.clear();
+                ready = true;
+            }
+            buildMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("[UserSearchIndex] 索引加载完成，用户数 " + index.size() + "，耗时 " + buildMillis + " ms");
+        } catch (SQLException e) {
+            System.err.println("[UserSearchIndex] 索引加载失败，用户搜索将继续使用SQL: " + e.getMessage());
+            synchronized (UserSearchIndex.class) {
+                pendingRefresh.clear();
+                builder = null;
+            }
+        }
+    }
+
+    // 调用方需持有 UserSearchIndex.class 锁
+    private static void reload(int userId) throws SQLException {
+        User user = DatabaseUtil.getUserDetailsById(userId);
+        lock.writeLock().lock();
+        try {
+            if (user != null) {
+                index.put(user);
+            } else {
+                index.remove(userId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
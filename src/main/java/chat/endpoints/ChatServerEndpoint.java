@@ -1,8 +1,11 @@
 package chat.endpoints;
 
+import chat.ChatMessageWriter;
 import chat.DatabaseUtil;
+import chat.cache.RecentMessageCache;
 import chat.config.GetHttpSessionConfigurator;
 import chat.model.ChatMessage;
+import chat.model.HistoryPage;
 import chat.model.User;
 import chat.util.GsonLocalDateTimeAdapter;
 import com.google.gson.Gson;
@@ -17,6 +20,7 @@ import jakarta.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -29,7 +33,14 @@ public class ChatServerEndpoint {
 
     // 【修改】将Map的Key从String改为Integer，以匹配roomId的类型，更安全高效
     private static final Map<Integer, Set<Session>> rooms = new ConcurrentHashMap<>();
-    private static final Set<Session> allSessions = new CopyOnWriteArraySet<>();
+    // 按用户ID索引的会话表，投递消息时只需遍历该用户自己的连接，而不是扫描全部会话
+    private static final Map<Integer, Set<Session>> userSessions = new ConcurrentHashMap<>();
+    // 每个会话的发送队列容量与溢出策略；聊天消息不能静默丢失，默认断开慢客户端，让其重连后重新拉取历史
+    private static final int OUTBOX_CAPACITY = Integer.getInteger("chat.ws.chat.outboxCapacity", 256);
+    private static final SessionOutbox.OverflowPolicy OVERFLOW_POLICY =
+            SessionOutbox.OverflowPolicy.fromProperty("chat.ws.chat.overflowPolicy", SessionOutbox.OverflowPolicy.DISCONNECT);
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_HISTORY_PAGE_SIZE = 100;
     private final Gson gson = new GsonBuilder()
             .registerTypeAdapter(LocalDateTime.class, new GsonLocalDateTimeAdapter())
             .create();
@@ -46,19 +57,19 @@ public class ChatServerEndpoint {
         User currentUser = (User) httpSession.getAttribute("user");
         session.getUserProperties().put("user", currentUser);
         session.getUserProperties().put("roomId", roomId); // 【修改】存储为Integer类型
+        SessionOutbox.attach(session, OUTBOX_CAPACITY, OVERFLOW_POLICY);
 
         rooms.computeIfAbsent(roomId, k -> new CopyOnWriteArraySet<>()).add(session);
-        allSessions.add(session);
+        registerUserSession(currentUser.getId(), session);
         System.out.println("[WebSocket] 用户 " + currentUser.getNickname() + " (ID: " + currentUser.getId() + ") 的会话 " + session.getId() + " 加入房间 " + roomId);
 
         try {
-            List<ChatMessage> history = DatabaseUtil.getMessages(roomId, 50);
+            List<ChatMessage> history = RecentMessageCache.getRecent(roomId, HISTORY_PAGE_SIZE);
             sendText(session, gson.toJson(Map.of("type", "history", "data", history)));
 
             User partner = getPartnerInRoom(session, roomId);
             if (partner != null) {
-                DatabaseUtil.markMessagesAsRead(roomId, currentUser.getId());
-                broadcastReadStatusUpdate(roomId, currentUser.getId(), partner.getId());
+                ReadAckCoalescer.submit(roomId, currentUser.getId(), partner.getId(), this::markReadAndNotify);
                 // 通知对方我已上线
                 sendMessageToUser(partner.getId(), gson.toJson(Map.of("type", "partner_status_change", "status", "online")));
             }
@@ -83,10 +94,14 @@ public class ChatServerEndpoint {
         // 尝试解析为JSON，以处理read_notification等控制消息
         try {
             JsonObject jsonMessage = gson.fromJson(message, JsonObject.class);
+            if (jsonMessage.has("type") && "history_page".equals(jsonMessage.get("type").getAsString())) {
+                sendHistoryPage(session, roomId, jsonMessage);
+                return;
+            }
             if (jsonMessage.has("type") && "read_notification".equals(jsonMessage.get("type").getAsString())) {
                 int recipientId = jsonMessage.get("recipientId").getAsInt();
-                DatabaseUtil.markMessagesAsRead(roomId, currentUser.getId());
-                broadcastReadStatusUpdate(roomId, currentUser.getId(), recipientId);
+                // 同一用户在同一房间的回执在短窗口内合并，只推进一次水位、推送一次
+                ReadAckCoalescer.submit(roomId, currentUser.getId(), recipientId, this::markReadAndNotify);
                 return; // 处理完后直接返回
             }
         } catch (JsonSyntaxException e) {
@@ -98,24 +113,57 @@ public class ChatServerEndpoint {
 
         // 处理普通聊天文本
         try {
-            ChatMessage savedMessage = DatabaseUtil.saveAndGetChatMessage(roomId, currentUser.getId(), message);
+            ChatMessageWriter.PendingMessage pending = null;
+            ChatMessage savedMessage;
+            if (ChatMessageWriter.isEnabled()) {
+                // 消息在内存中构造好后立即广播，由后台线程批量落库
+                pending = ChatMessageWriter.getInstance().submit(roomId, currentUser, message);
+                savedMessage = pending.getMessage();
+            } else {
+                savedMessage = DatabaseUtil.saveAndGetChatMessage(roomId, currentUser, message);
+            }
+            RecentMessageCache.append(savedMessage);
             User partner = getPartnerInRoom(session, roomId);
             broadcastMessageToParticipants(currentUser, partner, savedMessage);
+            if (pending != null) {
+                // 广播之后再登记回调：同步兜底写入时 future 已经完成，回调会立即执行，必须排在 append 和广播之后
+                int partnerId = (partner != null) ? partner.getId() : -1;
+                pending.getPersisted().whenComplete((persisted, error) -> {
+                    if (error != null) {
+                        retractUnpersistedMessage(savedMessage, currentUser.getId(), partnerId, error);
+                    }
+                });
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 消息已广播但多次重试后仍未写入数据库：从最近消息缓存中移除，
+     * 并通知收发双方撤下这条消息，否则双方看到的消息在刷新后就会凭空消失。
+     */
+    private void retractUnpersistedMessage(ChatMessage message, int senderId, int partnerId, Throwable error) {
+        System.err.println("[WebSocket] 消息 " + message.getId() + " 写入数据库失败，已通知双方撤回: " + error.getMessage());
+        RecentMessageCache.remove(message.getRoomId(), message.getId());
+        String notice = gson.toJson(Map.of("type", "send_failed", "messageId", message.getId(), "senderId", senderId));
+        sendMessageToUser(senderId, notice);
+        if (partnerId != -1) {
+            sendMessageToUser(partnerId, notice);
+        }
+    }
+
     @OnClose
     public void onClose(Session session) {
         Integer roomId = (Integer) session.getUserProperties().get("roomId");
         User currentUser = (User) session.getUserProperties().get("user");
 
-        allSessions.remove(session); // 总是从全局集合中移除
+        SessionOutbox.discard(session);
         if (currentUser == null || roomId == null) {
             System.out.println("[WebSocket] 一个未认证或未进入房间的会话关闭: " + session.getId());
             return;
         }
+        unregisterUserSession(currentUser.getId(), session);
 
         Set<Session> roomSessions = rooms.get(roomId);
         if (roomSessions != null) {
@@ -158,17 +206,43 @@ public class ChatServerEndpoint {
         }
     }
 
-    private void sendMessageToUser(int userId, String jsonMessage) {
-        for (Session s : allSessions) {
+    /**
+     * 把消息投递给用户当前打开的全部聊天连接，只访问该用户自己的会话。
+     */
+    static void sendMessageToUser(int userId, String jsonMessage) {
+        Set<Session> sessions = userSessions.get(userId);
+        if (sessions == null) {
+            return;
+        }
+        for (Session s : sessions) {
             if (s.isOpen()) {
-                User sessionUser = (User) s.getUserProperties().get("user");
-                if (sessionUser != null && sessionUser.getId() == userId) {
-                    sendText(s, jsonMessage);
-                }
+                sendText(s, jsonMessage);
             }
         }
     }
 
+    /**
+     * 将会话登记到用户会话索引中。添加操作放在compute内部完成，
+     * 以免与并发的 unregisterUserSession 在“集合刚好变空被移除”时发生竞争而丢失会话。
+     */
+    static void registerUserSession(int userId, Session session) {
+        userSessions.compute(userId, (id, sessions) -> {
+            Set<Session> target = (sessions != null) ? sessions : new CopyOnWriteArraySet<>();
+            target.add(session);
+            return target;
+        });
+    }
+
+    /**
+     * 从用户会话索引中移除一个会话；当该用户已没有任何连接时，顺带移除其索引项，避免Map无限增长。
+     */
+    static void unregisterUserSession(int userId, Session session) {
+        userSessions.computeIfPresent(userId, (id, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
     private User getPartnerInRoom(Session mySession, int roomId) {
         User currentUser = (User) mySession.getUserProperties().get("user");
         if (currentUser == null) return null;
@@ -185,20 +259,44 @@ public class ChatServerEndpoint {
                 .findFirst().orElse(null);
     }
 
-    private void broadcastReadStatusUpdate(int roomId, int readerId, int authorId) throws SQLException {
-        List<Integer> readMessageIds = DatabaseUtil.getReadMessageIdsByAuthor(roomId, readerId, authorId);
-        if (readMessageIds.isEmpty()) return;
-        String message = gson.toJson(Map.of("type", "read_status_update", "messageIds", readMessageIds));
+    /**
+     * 推进读取者的已读水位，并只把新的水位告诉消息作者：
+     * 作者自己发出的、ID不大于水位的消息即为已读，不再下发完整的已读消息ID列表。
+     */
+    private void markReadAndNotify(int roomId, int readerId, int authorId) throws SQLException {
+        long lastReadMessageId = DatabaseUtil.markMessagesAsRead(roomId, readerId, ChatMessageWriter.latestPendingId(roomId));
+        RecentMessageCache.markRead(roomId, readerId, lastReadMessageId);
+        if (lastReadMessageId == 0) return;
+        String message = gson.toJson(Map.of("type", "read_status_update", "readerId", readerId, "lastReadMessageId", lastReadMessageId));
         sendMessageToUser(authorId, message);
     }
 
-    private void sendText(Session session, String text) {
-        try {
-            session.getBasicRemote().sendText(text);
-        } catch (IOException e) {
-            // 捕获并记录IO异常，但不再向上抛出，使调用代码更简洁
-            System.err.println("Failed to send message to session " + session.getId() + ": " + e.getMessage());
+    /**
+     * 处理客户端的“加载更早消息”请求：{"type":"history_page","beforeId":123,"limit":50}
+     */
+    private void sendHistoryPage(Session session, int roomId, JsonObject request) throws SQLException {
+        long beforeId = request.has("beforeId") ? request.get("beforeId").getAsLong() : Long.MAX_VALUE;
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : HISTORY_PAGE_SIZE;
+        limit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+
+        HistoryPage page = RecentMessageCache.loadPage(roomId, beforeId, limit);
+        Map<String, Object> response = new HashMap<>();
+        response.put("type", "history_page");
+        response.put("data", page.getMessages());
+        response.put("hasMore", page.isHasMore());
+        response.put("nextCursor", page.getNextCursor());
+        sendText(session, gson.toJson(response));
+    }
+
+    private static void sendText(Session session, String text) {
+        // 放入会话自己的发送队列，由 getAsyncRemote() 异步发出，不阻塞当前线程。
+        // 发送队列只在 onOpen 中创建；没有队列说明会话未完成认证或已关闭，直接丢弃
+        SessionOutbox outbox = SessionOutbox.of(session);
+        if (outbox == null) {
+            System.err.println("[WebSocket] 会话 " + session.getId() + " 没有发送队列，丢弃一条消息");
+            return;
         }
+        outbox.offer(text);
     }
 
     private void closeSession(Session session, String reason) {
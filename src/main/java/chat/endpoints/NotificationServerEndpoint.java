@@ -1,6 +1,9 @@
 package chat.endpoints;
 
+import chat.cache.ContactGraphCache;
 import chat.config.GetHttpSessionConfigurator;
+import chat.listeners.ActiveUserListener;
+import chat.listeners.PresenceEngine;
 import chat.model.User;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -10,14 +13,30 @@ import jakarta.websocket.*;
 import jakarta.websocket.server.ServerEndpoint;
 
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BinaryOperator;
 
 @ServerEndpoint(value = "/notifications", configurator = GetHttpSessionConfigurator.class)
 public class NotificationServerEndpoint {
 
-    private static final Map<Integer, Session> userSessions = new ConcurrentHashMap<>();
+    // 同一用户可能在多个标签页或设备上同时连接，每个用户对应一组通知会话
+    private static final Map<Integer, Set<Session>> userSessions = new ConcurrentHashMap<>();
+    // 连接建立时把用户ID存进会话属性，关闭/出错时直接取出，不必遍历 userSessions 反查
+    static final String USER_ID_PROPERTY = "userId";
+    // 在线好友快照只需保留最新一份
+    private static final String ONLINE_CONTACTS_KEY = "online_contacts";
     private static final Gson gson = new Gson();
+    // 通知多为可合并的状态类消息，默认在队列满时合并同键消息
+    private static final int OUTBOX_CAPACITY = Integer.getInteger("chat.ws.notifications.outboxCapacity", 128);
+    private static final SessionOutbox.OverflowPolicy OVERFLOW_POLICY =
+            SessionOutbox.OverflowPolicy.fromProperty("chat.ws.notifications.overflowPolicy", SessionOutbox.OverflowPolicy.COALESCE);
 
     @OnOpen
     public void onOpen(Session session, EndpointConfig config) {
@@ -35,15 +54,25 @@ public class NotificationServerEndpoint {
         User currentUser = (User) httpSession.getAttribute("user");
         int userId = currentUser.getId();
 
-        userSessions.put(userId, session);
+        session.getUserProperties().put(USER_ID_PROPERTY, userId);
+        SessionOutbox.attach(session, OUTBOX_CAPACITY, OVERFLOW_POLICY);
+        registerUserSession(userId, session);
         System.out.println("[Notifications] 用户 " + userId + " 已连接通知服务。当前在线: " + userSessions.size());
+
+        // 连接建立时下发一次在线好友快照，之后只通过 status_batch 推送变化
+        SessionOutbox outbox = SessionOutbox.of(session);
+        long mark = outbox.mark();
+        Map<String, Object> snapshot = buildOnlineContactsSnapshot(userId);
+        if (snapshot != null) {
+            outbox.offerSnapshot(gson.toJson(snapshot), ONLINE_CONTACTS_KEY, PresenceEngine.STATUS_BATCH_KEY, mark);
+        }
     }
 
     @OnClose
     public void onClose(Session session) {
-        Integer userId = findUserIdBySession(session);
-        if (userId != null) {
-            userSessions.remove(userId);
+        SessionOutbox.discard(session);
+        Integer userId = getUserId(session);
+        if (userId != null && unregisterUserSession(userId, session)) {
             System.out.println("[Notifications] 用户 " + userId + " 已断开通知服务。当前在线: " + userSessions.size());
         }
     }
@@ -52,9 +81,10 @@ public class NotificationServerEndpoint {
     public void onError(Session session, Throwable throwable) {
         System.err.println("[Notifications] WebSocket 发生错误，Session ID: " + session.getId());
         throwable.printStackTrace();
-        Integer userId = findUserIdBySession(session);
+        SessionOutbox.discard(session);
+        Integer userId = getUserId(session);
         if (userId != null) {
-            userSessions.remove(userId);
+            unregisterUserSession(userId, session);
         }
     }
 
@@ -64,7 +94,7 @@ public class NotificationServerEndpoint {
             JsonObject jsonObject = JsonParser.parseString(message).getAsJsonObject();
             String type = jsonObject.get("type").getAsString();
             if ("ping".equals(type)) {
-                System.out.println("[Notifications] 收到用户 " + findUserIdBySession(session) + " 的心跳包。");
+                System.out.println("[Notifications] 收到用户 " + getUserId(session) + " 的心跳包。");
                 return;
             }
         } catch (Exception e) {
@@ -72,26 +102,139 @@ public class NotificationServerEndpoint {
         }
     }
 
-    private Integer findUserIdBySession(Session session) {
-        return userSessions.entrySet().stream()
-                .filter(entry -> entry.getValue().equals(session))
-                .map(Map.Entry::getKey)
-                .findFirst()
-                .orElse(null);
+    /**
+     * 把会话加入用户的通知会话集合。添加放在 compute 内完成，避免与并发的注销在集合刚变空时竞争。
+     */
+    static void registerUserSession(int userId, Session session) {
+        userSessions.compute(userId, (id, sessions) -> {
+            Set<Session> target = (sessions != null) ? sessions : new CopyOnWriteArraySet<>();
+            target.add(session);
+            return target;
+        });
+    }
+
+    /**
+     * 从用户的通知会话集合中移除会话，集合为空时移除整个索引项。
+     * @return 会话是否确实在集合中
+     */
+    private static boolean unregisterUserSession(int userId, Session session) {
+        boolean[] removed = new boolean[1];
+        userSessions.computeIfPresent(userId, (id, sessions) -> {
+            removed[0] = sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+        return removed[0];
+    }
+
+    private static Integer getUserId(Session session) {
+        return (Integer) session.getUserProperties().get(USER_ID_PROPERTY);
+    }
+
+    /**
+     * 好友关系变化后（如接受好友请求）向用户的所有连接重新下发在线好友快照。
+     * 快照入队时会取代各连接中在读取快照数据之前排队的 status_batch，避免旧增量在新快照之后被套用。
+     */
+    public static void sendOnlineContacts(int userId) {
+        Set<Session> sessions = userSessions.get(userId);
+        if (sessions == null || sessions.isEmpty()) {
+            return;
+        }
+        // 先记下每个连接的入队序号，再读取在线状态
+        Map<SessionOutbox, Long> marks = new HashMap<>();
+        for (Session session : sessions) {
+            SessionOutbox outbox = SessionOutbox.of(session);
+            if (outbox != null) {
+                marks.put(outbox, outbox.mark());
+            }
+        }
+        Map<String, Object> snapshot = buildOnlineContactsSnapshot(userId);
+        if (snapshot == null) {
+            return;
+        }
+        String jsonMessage = gson.toJson(snapshot);
+        for (Map.Entry<SessionOutbox, Long> entry : marks.entrySet()) {
+            entry.getKey().offerSnapshot(jsonMessage, ONLINE_CONTACTS_KEY, PresenceEngine.STATUS_BATCH_KEY, entry.getValue());
+        }
+    }
+
+    /**
+     * 在线好友快照：好友ID来自 ContactGraphCache，在线状态来自内存，命中缓存时不访问数据库
+     */
+    private static Map<String, Object> buildOnlineContactsSnapshot(int userId) {
+        try {
+            int[] contactIds = ContactGraphCache.getContactIds(userId);
+            Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("type", "online_contacts");
+            snapshot.put("userIds", ActiveUserListener.getOnlineContactIds(contactIds));
+            return snapshot;
+        } catch (SQLException e) {
+            System.err.println("[Notifications] 获取用户 " + userId + " 的在线好友快照失败: " + e.getMessage());
+            return null;
+        }
     }
 
     public static void sendNotification(int userId, Object notificationObject) {
-        Session session = userSessions.get(userId);
-        if (session != null && session.isOpen()) {
-            try {
-                String jsonMessage = gson.toJson(notificationObject);
-                session.getBasicRemote().sendText(jsonMessage);
-                System.out.println("[Notifications] 成功向用户 " + userId + " 发送通知: " + jsonMessage);
-            } catch (IOException e) {
-                System.err.println("[Notifications] 向用户 " + userId + " 发送通知失败: " + e.getMessage());
+        sendNotification(userId, notificationObject, null);
+    }
+
+    /**
+     * 向用户发送通知。消息进入会话的发送队列后立即返回，不会阻塞调用线程。
+     * @param coalesceKey 合并键，同键的未发出通知只保留最新一条；为 null 表示不可合并
+     */
+    public static void sendNotification(int userId, Object notificationObject, String coalesceKey) {
+        sendNotification(userId, notificationObject, coalesceKey, null);
+    }
+
+    /**
+     * 向用户发送可合并的增量通知。
+     * @param coalesceKey 合并键，为 null 表示不可合并
+     * @param merger 队列中已有同键的未发出通知时，用它把旧通知与新通知合并成一条；为 null 表示新通知直接覆盖旧通知
+     */
+    public static void sendNotification(int userId, Object notificationObject, String coalesceKey, BinaryOperator<String> merger) {
+        Set<Session> sessions = userSessions.get(userId);
+        if (sessions == null || sessions.isEmpty()) {
+            System.out.println("[Notifications] 尝试向用户 " + userId + " 发送通知，但用户不在线。");
+            return;
+        }
+        // 每条通知只序列化一次，用户的所有连接共享同一个字符串
+        String jsonMessage = gson.toJson(notificationObject);
+        int delivered = 0;
+        for (Session session : sessions) {
+            SessionOutbox outbox = SessionOutbox.of(session);
+            if (outbox != null && session.isOpen() && outbox.offer(jsonMessage, coalesceKey, merger)) {
+                delivered++;
             }
+        }
+        if (delivered > 0) {
+            System.out.println("[Notifications] 已向用户 " + userId + " 的 " + delivered + " 个连接投递通知: " + jsonMessage);
         } else {
-            System.out.println("[Notifications] 尝试向用户 " + userId + " 发送通知，但用户不在线。");
+            System.err.println("[Notifications] 向用户 " + userId + " 发送通知失败: 发送队列已关闭");
+        }
+    }
+
+    /**
+     * 通知连接的统计：在线用户数、连接总数、单个用户的最大连接数，以及按每用户连接数分布的用户数
+     */
+    public static Map<String, Object> metrics() {
+        int users = 0;
+        int sockets = 0;
+        int maxPerUser = 0;
+        Map<String, Integer> distribution = new TreeMap<>();
+        for (Set<Session> sessions : userSessions.values()) {
+            int count = sessions.size();
+            if (count == 0) {
+                continue;
+            }
+            users++;
+            sockets += count;
+            maxPerUser = Math.max(maxPerUser, count);
+            distribution.merge(count >= 4 ? "4+" : String.valueOf(count), 1, Integer::sum);
         }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("connectedUsers", users);
+        metrics.put("sockets", sockets);
+        metrics.put("maxSocketsPerUser", maxPerUser);
+        metrics.put("usersBySocketCount", distribution);
+        return metrics;
     }
 }
\ No newline at end of file
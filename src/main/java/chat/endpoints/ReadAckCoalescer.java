@@ -0,0 +1,161 @@
+package chat.endpoints;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 (房间, 读取者) 合并已读回执。
+ * 客户端每次聚焦、滚动都会发送 read_notification；同一读取者在同一房间的回执在一个短窗口内只生效一次：
+ * 窗口内第一条回执安排一次延迟执行，之后到达的回执只更新要通知的作者，窗口结束时统一推进水位并推送一次 read_status_update。
+ */
+public final class ReadAckCoalescer {
+
+    /**
+     * 窗口结束时真正执行的已读处理
+     */
+    interface Handler {
+        void apply(int roomId, int readerId, int authorId) throws SQLException;
+    }
+
+    // 合并窗口，<= 0 表示不合并、每条回执立即处理
+    private static final long WINDOW_MS = Long.getLong("chat.ws.readAck.windowMs", 250L);
+
+    private static final Map<Long, PendingAck> pending = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService scheduler; // 由 ReadAckCoalescer.class 保护，首次使用时创建
+    // 由 ReadAckCoalescer.class 保护；shutdown 之后不再创建调度线程，回执直接在调用线程上处理
+    private static boolean stopped;
+
+    private static final AtomicLong receivedAcks = new AtomicLong();
+    private static final AtomicLong appliedAcks = new AtomicLong();
+    private static final AtomicLong failedAcks = new AtomicLong();
+
+    private ReadAckCoalescer() {}
+
+    /**
+     * 提交一条已读回执
+     * @param roomId 房间ID
+     * @param readerId 读取者ID
+     * @param authorId 需要收到 read_status_update 的消息作者ID
+     * @param handler 窗口结束时执行的处理逻辑
+     */
+    static void submit(int roomId, int readerId, int authorId, Handler handler) {
+        receivedAcks.incrementAndGet();
+        if (WINDOW_MS <= 0) {
+            apply(new PendingAck(roomId, readerId, authorId, handler));
+            return;
+        }
+
+        long key = ((long) roomId << 32) | (readerId & 0xFFFFFFFFL);
+        boolean[] created = new boolean[1];
+        pending.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.authorId = authorId;
+                existing.handler = handler;
+                return existing;
+            }
+            created[0] = true;
+            return new PendingAck(roomId, readerId, authorId, handler);
+        });
+        if (created[0]) {
+            Runnable flush = () -> {
+                PendingAck ack = pending.remove(key);
+                if (ack != null) {
+                    apply(ack);
+                }
+            };
+            ScheduledExecutorService executor = scheduler();
+            if (executor != null) {
+                try {
+                    executor.schedule(flush, WINDOW_MS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shutdown 在取得调度器之后停止了它
+                }
+            }
+            // 应用正在关闭（连接断开时仍会有回执到达），不再等待窗口
+            flush.run();
+        }
+    }
+
+    /**
+     * 应用关闭时调用：立即处理所有尚未到期的回执，然后停止调度线程。之后到达的回执在调用线程上立即处理
+     */
+    public static void shutdown() {
+        ScheduledExecutorService executor;
+        synchronized (ReadAckCoalescer.class) {
+            stopped = true;
+            executor = scheduler;
+            scheduler = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        List<PendingAck> remaining = new ArrayList<>(pending.values());
+        pending.clear();
+        for (PendingAck ack : remaining) {
+            apply(ack);
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("windowMs", WINDOW_MS);
+        metrics.put("received", receivedAcks.get());
+        metrics.put("applied", appliedAcks.get());
+        metrics.put("failed", failedAcks.get());
+        metrics.put("pending", pending.size());
+        return metrics;
+    }
+
+    /**
+     * @return 调度器；shutdown 之后返回 null
+     */
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (stopped) {
+            return null;
+        }
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "read-ack-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    private static void apply(PendingAck ack) {
+        try {
+            ack.handler.apply(ack.roomId, ack.readerId, ack.authorId);
+            appliedAcks.incrementAndGet();
+        } catch (Exception e) {
+            failedAcks.incrementAndGet();
+            System.err.println("[ReadAckCoalescer] 处理房间 " + ack.roomId + " 用户 " + ack.readerId + " 的已读回执失败: " + e.getMessage());
+        }
+    }
+
+    private static final class PendingAck {
+        private final int roomId;
+        private final int readerId;
+        private volatile int authorId;
+        private volatile Handler handler;
+
+        private PendingAck(int roomId, int readerId, int authorId, Handler handler) {
+            this.roomId = roomId;
+            this.readerId = readerId;
+            this.authorId = authorId;
+            this.handler = handler;
+        }
+    }
+}
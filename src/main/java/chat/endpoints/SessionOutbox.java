@@ -0,0 +1,357 @@
+package chat.endpoints;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BinaryOperator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个WebSocket会话的有界发送队列。
+ * 所有外发消息先入队，再通过 getAsyncRemote() 逐条异步发出，调用线程（@OnMessage、登录请求线程等）
+ * 不会再被某个慢客户端阻塞。Async RemoteEndpoint 不允许同一会话并发发送，所以每个会话同一时刻只有一条消息在途。
+ */
+public class SessionOutbox implements SendHandler {
+
+    /**
+     * 队列已满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /** 丢弃队列中最旧的一条，为新消息腾出位置 */
+        DROP_OLDEST,
+        /** 带合并键的消息覆盖（或合并进）队列中同键的旧消息；队列满且无法合并时丢弃最旧的不可合并消息 */
+        COALESCE,
+        /** 直接断开慢客户端，由客户端重连后重新拉取状态 */
+        DISCONNECT;
+
+        /**
+         * 从系统属性读取策略，值非法时回退到默认值。
+         */
+        public static OverflowPolicy fromProperty(String propertyName, OverflowPolicy defaultPolicy) {
+            String value = System.getProperty(propertyName);
+            if (value == null || value.isBlank()) {
+                return defaultPolicy;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("[SessionOutbox] 无效的溢出策略 " + propertyName + "=" + value + "，使用默认值 " + defaultPolicy);
+                return defaultPolicy;
+            }
+        }
+    }
+
+    private static final String USER_PROPERTY_KEY = SessionOutbox.class.getName();
+
+    // 全局计数器，供 MetricsServlet 输出
+    private static final AtomicInteger totalQueueDepth = new AtomicInteger();
+    private static final AtomicLong droppedMessages = new AtomicLong();
+    private static final AtomicLong coalescedMessages = new AtomicLong();
+    private static final AtomicLong failedSends = new AtomicLong();
+    private static final AtomicLong disconnectedSessions = new AtomicLong();
+
+    private final Session session;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private boolean sending;
+    private boolean closed;
+    private long sequence; // 每次入队或合并加一，供 offerSnapshot 判断增量消息的先后
+
+    private SessionOutbox(Session session, int capacity, OverflowPolicy policy) {
+        this.session = session;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * 为会话创建发送队列并挂到会话的用户属性上。应在 @OnOpen 中、会话对其他线程可见之前调用。
+     * 会话已有发送队列时直接返回已有的那个，不会用新队列替换它（否则会丢失排队的消息并破坏单条在途的约束）。
+     * 容器的用户属性是 ConcurrentHashMap，putIfAbsent 是原子的。
+     */
+    public static SessionOutbox attach(Session session, int capacity, OverflowPolicy policy) {
+        SessionOutbox outbox = new SessionOutbox(session, capacity, policy);
+        Object existing = session.getUserProperties().putIfAbsent(USER_PROPERTY_KEY, outbox);
+        return existing != null ? (SessionOutbox) existing : outbox;
+    }
+
+    /**
+     * 获取会话的发送队列；会话尚未 attach 时返回 null。
+     */
+    public static SessionOutbox of(Session session) {
+        return (SessionOutbox) session.getUserProperties().get(USER_PROPERTY_KEY);
+    }
+
+    /**
+     * 会话关闭时调用，清空尚未发出的消息。
+     */
+    public static void discard(Session session) {
+        SessionOutbox outbox = of(session);
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * 入队一条不可合并的消息。
+     */
+    public void offer(String text) {
+        offer(text, null);
+    }
+
+    /**
+     * 入队一条消息，同键的旧消息直接被新消息覆盖。
+     * @param text 要发送的文本
+     * @param coalesceKey 合并键，仅在 COALESCE 策略下生效；为 null 表示该消息不可合并
+     * @return 消息是否被接受（包括合并进已有消息）
+     */
+    public boolean offer(String text, String coalesceKey) {
+        return offer(text, coalesceKey, null);
+    }
+
+    /**
+     * 入队一条消息。
+     * @param text 要发送的文本
+     * @param coalesceKey 合并键，仅在 COALESCE 策略下生效；为 null 表示该消息不可合并
+     * @param merger 队列中已有同键消息时，用 merger.apply(旧消息, 新消息) 的结果替换旧消息；
+     *               为 null 表示直接用新消息覆盖。适用于增量消息，覆盖会丢掉旧消息里的变化
+     * @return 消息是否被接受（包括合并进已有消息）
+     */
+    public boolean offer(String text, String coalesceKey, BinaryOperator<String> merger) {
+        return enqueue(text, coalesceKey, merger, null, 0L);
+    }
+
+    /**
+     * 当前的入队序号。构造状态快照之前先取一次，再传给 offerSnapshot，
+     * 用来区分哪些增量消息是在读取快照数据之前入队的。
+     */
+    public synchronized long mark() {
+        return sequence;
+    }
+
+    /**
+     * 入队一条状态快照，与溢出策略无关：先移除队列中同键的旧快照，以及序号不大于 mark、键为 supersededKey 的增量消息。
+     * 这些增量在快照读取数据之前就已入队，快照已包含它们的效果；若留在快照之后发出，客户端会把较旧的状态重新套用到较新的快照上。
+     * mark 之后入队（或被合并过）的增量可能比快照新，快照插在它们之前；没有这样的增量时快照排到队尾。
+     * @param text 快照文本
+     * @param coalesceKey 快照的键
+     * @param supersededKey 被快照取代的增量消息的键
+     * @param mark 构造快照之前调用 mark() 得到的序号
+     * @return 快照是否被接受
+     */
+    public boolean offerSnapshot(String text, String coalesceKey, String supersededKey, long mark) {
+        return enqueue(text, Objects.requireNonNull(coalesceKey), null, Objects.requireNonNull(supersededKey), mark);
+    }
+
+    private boolean enqueue(String text, String coalesceKey, BinaryOperator<String> merger, String supersededKey, long mark) {
+        Entry next = null;
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) {
+                droppedMessages.incrementAndGet();
+                return false;
+            }
+            sequence++;
+            if (supersededKey != null) {
+                if (insertSnapshot(text, coalesceKey, supersededKey, mark)) {
+                    return true;
+                }
+            } else if (policy == OverflowPolicy.COALESCE && coalesceKey != null) {
+                for (Entry queued : queue) {
+                    if (coalesceKey.equals(queued.coalesceKey)) {
+                        queued.text = (merger != null) ? merger.apply(queued.text, text) : text;
+                        queued.sequence = sequence;
+                        coalescedMessages.incrementAndGet();
+                        return true;
+                    }
+                }
+            }
+            if (queue.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    disconnect = true;
+                    droppedMessages.addAndGet(queue.size() + 1L);
+                    clearQueue();
+                    closed = true;
+                } else {
+                    evictOne();
+                    totalQueueDepth.decrementAndGet();
+                    droppedMessages.incrementAndGet();
+                }
+            }
+            if (!disconnect) {
+                queue.addLast(new Entry(text, coalesceKey, sequence));
+                totalQueueDepth.incrementAndGet();
+                if (!sending) {
+                    sending = true;
+                    next = pollNext();
+                }
+            }
+        }
+
+        if (disconnect) {
+            disconnectSlowConsumer();
+            return false;
+        }
+        if (next != null) {
+            send(next);
+        }
+        return true;
+    }
+
+    /**
+     * 上一条异步发送完成后的回调，继续发送队列中的下一条。
+     */
+    @Override
+    public void onResult(SendResult result) {
+        if (!result.isOK()) {
+            failedSends.incrementAndGet();
+            Throwable cause = result.getException();
+            System.err.println("Failed to send message to session " + session.getId() + ": " + (cause != null ? cause.getMessage() : "unknown"));
+        }
+        Entry next;
+        synchronized (this) {
+            next = closed ? null : pollNext();
+            if (next == null) {
+                sending = false;
+            }
+        }
+        if (next != null) {
+            send(next);
+        }
+    }
+
+    /**
+     * 当前队列中等待发送的消息数
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queueDepth", totalQueueDepth.get());
+        metrics.put("dropped", droppedMessages.get());
+        metrics.put("coalesced", coalescedMessages.get());
+        metrics.put("failedSends", failedSends.get());
+        metrics.put("disconnectedSlowConsumers", disconnectedSessions.get());
+        return metrics;
+    }
+
+    private void send(Entry entry) {
+        try {
+            session.getAsyncRemote().sendText(entry.text, this);
+        } catch (IllegalStateException e) {
+            // 会话已关闭，剩余消息没有发送的意义
+            failedSends.incrementAndGet();
+            close();
+        }
+    }
+
+    /**
+     * 移除被快照取代的消息；若还有 mark 之后入队的增量，把快照插到第一条这样的增量之前。
+     * @return 快照是否已插入队列；返回 false 时由调用方按普通消息排到队尾
+     */
+    private boolean insertSnapshot(String text, String snapshotKey, String supersededKey, long mark) {
+        List<Entry> kept = new ArrayList<>(queue.size() + 1);
+        int insertAt = -1;
+        for (Entry queued : queue) {
+            boolean superseded = supersededKey.equals(queued.coalesceKey);
+            if (snapshotKey.equals(queued.coalesceKey) || (superseded && queued.sequence <= mark)) {
+                totalQueueDepth.decrementAndGet();
+                coalescedMessages.incrementAndGet();
+                continue;
+            }
+            if (superseded && insertAt < 0) {
+                insertAt = kept.size();
+            }
+            kept.add(queued);
+        }
+        if (insertAt < 0) {
+            queue.clear();
+            queue.addAll(kept);
+            return false;
+        }
+        // 有比快照更新的增量时队列一定非空，正在发送中，无需在这里启动发送
+        kept.add(insertAt, new Entry(text, snapshotKey, sequence));
+        totalQueueDepth.incrementAndGet();
+        queue.clear();
+        queue.addAll(kept);
+        while (queue.size() > capacity) {
+            evictOne();
+            totalQueueDepth.decrementAndGet();
+            droppedMessages.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * 队列满时腾出一个位置。COALESCE 策略下每个合并键最多只有一条排队消息，它们承载的是状态，
+     * 丢掉后客户端直到重连都无法纠正，所以优先丢弃最旧的不可合并消息；全是带键消息时才丢最旧的一条。
+     */
+    private void evictOne() {
+        if (policy == OverflowPolicy.COALESCE) {
+            Iterator<Entry> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().coalesceKey == null) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+        queue.pollFirst();
+    }
+
+    private Entry pollNext() {
+        Entry next = queue.pollFirst();
+        if (next != null) {
+            totalQueueDepth.decrementAndGet();
+        }
+        return next;
+    }
+
+    private synchronized void close() {
+        closed = true;
+        sending = false;
+        clearQueue();
+    }
+
+    private void clearQueue() {
+        totalQueueDepth.addAndGet(-queue.size());
+        queue.clear();
+    }
+
+    private void disconnectSlowConsumer() {
+        disconnectedSessions.incrementAndGet();
+        System.err.println("[SessionOutbox] 会话 " + session.getId() + " 的发送队列已满 (" + capacity + ")，断开慢客户端。");
+        try {
+            if (session.isOpen()) {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Slow consumer"));
+            }
+        } catch (IOException e) {
+            System.err.println("[SessionOutbox] 关闭会话 " + session.getId() + " 失败: " + e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        private String text;
+        private final String coalesceKey;
+        private long sequence; // 入队（或最近一次被合并）时的序号
+
+        private Entry(String text, String coalesceKey, long sequence) {
+            this.text = Objects.requireNonNull(text);
+            this.coalesceKey = coalesceKey;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package chat.filters;
 
 import jakarta.servlet.*;
 import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
@@ -12,6 +13,8 @@ import java.io.IOException;
 @WebFilter("/api/*") // <-- 这个注解让过滤器应用于所有以 /api/ 开头的请求
 public class ApiHeaderFilter implements Filter {
 
+    private static final String AVATAR_PATH = "/api/avatar";
+
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
@@ -21,10 +24,14 @@ public class ApiHeaderFilter implements Filter {
         // 1. 添加 X-Content-Type-Options 安全头
         httpResponse.setHeader("X-Content-Type-Options", "nosniff");
 
-        // 2. 为API响应添加禁止缓存的头
-        httpResponse.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
-        httpResponse.setHeader("Pragma", "no-cache"); // 兼容旧版 HTTP/1.0
-        httpResponse.setDateHeader("Expires", 0);
+        // 2. 为API响应添加禁止缓存的头；头像接口自己设置 ETag 和 Cache-Control，不在此处禁止缓存
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+        if (!AVATAR_PATH.equals(path)) {
+            httpResponse.setHeader("Cache-Control", "no-cache, no-store, must-revalidate");
+            httpResponse.setHeader("Pragma", "no-cache"); // 兼容旧版 HTTP/1.0
+            httpResponse.setDateHeader("Expires", 0);
+        }
 
         // 将请求传递给过滤器链中的下一个元素（即您真正的Servlet）
         chain.doFilter(request, response);
@@ -1,18 +1,14 @@
 package chat.listeners;
 
-import chat.DatabaseUtil;
-import chat.endpoints.NotificationServerEndpoint;
 import chat.model.User;
+import chat.util.ConcurrentIntBitSet;
 import jakarta.servlet.annotation.WebListener;
 import jakarta.servlet.http.HttpSession;
 import jakarta.servlet.http.HttpSessionEvent;
 import jakarta.servlet.http.HttpSessionListener;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -28,6 +24,8 @@ public class ActiveUserListener implements HttpSessionListener {
 
     // 键: 用户ID, 值: 包含该用户所有活跃会话的列表
     private static final ConcurrentMap<Integer, CopyOnWriteArrayList<HttpSession>> activeUserSessions = new ConcurrentHashMap<>();
+    // 在线用户位图，与 activeUserSessions 同步维护；在线查询只读这里，无锁且不装箱
+    private static final ConcurrentIntBitSet onlineUsers = new ConcurrentIntBitSet(1 << 16);
 
     @Override
     public void sessionCreated(HttpSessionEvent se) {
@@ -48,8 +46,9 @@ public class ActiveUserListener implements HttpSessionListener {
                 // 如果该用户的所有会话都已销毁，则广播下线通知
                 if (sessions.isEmpty()) {
                     System.out.println("[ActiveUserListener] 用户 " + user.getNickname() + " (ID: " + user.getId() + ") 已完全下线。");
-                    activeUserSessions.remove(user.getId());
-                    broadcastStatusChange(user.getId(), "offline");
+                    activeUserSessions.remove(user.getId(), sessions);
+                    refreshOnlineBit(user.getId());
+                    PresenceEngine.statusChanged(user.getId());
                 }
             }
         }
@@ -64,11 +63,13 @@ public class ActiveUserListener implements HttpSessionListener {
         boolean wasOffline = !activeUserSessions.containsKey(user.getId()) || activeUserSessions.get(user.getId()).isEmpty();
 
         activeUserSessions.computeIfAbsent(user.getId(), k -> new CopyOnWriteArrayList<>()).add(newSession);
+        refreshOnlineBit(user.getId());
 
         System.out.println("[ActiveUserListener] 用户 " + user.getNickname() + " (ID: " + user.getId() + ") 已上线。当前在线会话数: " + activeUserSessions.get(user.getId()).size());
 
+        // 状态广播由 PresenceEngine 在专用线程上去抖、按接收者批量发送
         if (wasOffline) {
-            broadcastStatusChange(user.getId(), "online");
+            PresenceEngine.statusChanged(user.getId());
         }
     }
 
@@ -85,8 +86,9 @@ public class ActiveUserListener implements HttpSessionListener {
                 System.out.println("[ActiveUserListener] 用户ID " + userId + " 的会话 " + sessionId + " 已从列表中手动移除。");
 
                 if (sessions.isEmpty()) {
-                    activeUserSessions.remove(userId);
-                    broadcastStatusChange(userId, "offline");
+                    activeUserSessions.remove(userId, sessions);
+                    refreshOnlineBit(userId);
+                    PresenceEngine.statusChanged(userId);
                 }
             }
         }
@@ -120,7 +122,32 @@ public class ActiveUserListener implements HttpSessionListener {
      * @return 如果用户有任何一个活跃会话，则返回 true
      */
     public static boolean isUserActive(Integer userId) {
-        return userId != null && activeUserSessions.containsKey(userId) && !activeUserSessions.get(userId).isEmpty();
+        return userId != null && onlineUsers.contains(userId);
+    }
+
+    /**
+     * 批量筛选在线用户，不分配任何对象，适合在几千个好友中查找在线者。
+     * @param userIds 待检查的用户ID
+     * @param dest 结果数组，长度不能小于 userIds.length
+     * @return 在线用户的个数，结果位于 dest 的前若干个元素
+     */
+    public static int filterOnline(int[] userIds, int[] dest) {
+        return onlineUsers.filter(userIds, dest);
+    }
+
+    /**
+     * 按 activeUserSessions 中的实际会话重新计算用户的在线位。
+     * 加锁保证并发的登录/登出按顺序落到位图上，最后一次计算总是看到最新的会话列表。
+     */
+    private static void refreshOnlineBit(int userId) {
+        synchronized (onlineUsers) {
+            CopyOnWriteArrayList<HttpSession> sessions = activeUserSessions.get(userId);
+            if (sessions != null && !sessions.isEmpty()) {
+                onlineUsers.add(userId);
+            } else {
+                onlineUsers.remove(userId);
+            }
+        }
     }
 
     /**
@@ -140,6 +167,19 @@ public class ActiveUserListener implements HttpSessionListener {
         return sessions.stream().anyMatch(session -> ipAddress.equals(session.getAttribute("ipAddress")));
     }
 
+    /**
+     * 从好友ID数组中筛选出在线的好友
+     */
+    public static List<Integer> getOnlineContactIds(int[] contactIds) {
+        int[] online = new int[contactIds.length];
+        int count = filterOnline(contactIds, online);
+        List<Integer> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(online[i]);
+        }
+        return result;
+    }
+
     public static List<Integer> getOnlineContactIds(List<Integer> contactIds) {
         if (contactIds == null) {
             return Collections.emptyList();
@@ -148,22 +188,4 @@ public class ActiveUserListener implements HttpSessionListener {
                 .filter(ActiveUserListener::isUserActive)
                 .collect(Collectors.toList());
     }
-
-    private static void broadcastStatusChange(int userId, String status) {
-        try {
-            List<Integer> friendIds = DatabaseUtil.getContactIds(userId);
-            Map<String, Object> notification = new HashMap<>();
-            notification.put("type", "status_change");
-            notification.put("userId", userId);
-            notification.put("status", status);
-            for (Integer friendId : friendIds) {
-                if (isUserActive(friendId)) {
-                    NotificationServerEndpoint.sendNotification(friendId, notification);
-                }
-            }
-        } catch (SQLException e) {
-            System.err.println("[ActiveUserListener] 广播用户 " + userId + " 状态变更时数据库出错。");
-            e.printStackTrace();
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package chat.listeners;
+
+import chat.ChatMessageWriter;
+import chat.DatabaseUtil;
+import chat.cache.UserSearchIndex;
+import chat.endpoints.ReadAckCoalescer;
+import chat.util.AvatarProcessor;
+import chat.util.PasswordUtil;
+import chat.util.PasswordVerifier;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+
+/**
+ * 应用生命周期监听器。
+ * 在应用关闭时停止后台线程（如消息批量写入器），并在它们完成收尾工作后关闭数据库连接池。
+ */
+public class AppLifecycleListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // BCrypt 工作因子的校准要做若干次哈希，在启动阶段完成，不让第一个登录请求承担
+        PasswordUtil.initialize();
+        // 用户搜索索引需要预先加载全部用户，在后台线程中进行；其他组件在首次使用时按需初始化
+        UserSearchIndex.startBuilding();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        System.out.println("[AppLifecycleListener] 应用正在关闭，开始清理资源...");
+        UserSearchIndex.shutdown();
+        AvatarProcessor.shutdown();
+        PasswordVerifier.shutdown();
+        PresenceEngine.shutdown();
+        ReadAckCoalescer.shutdown();
+        ChatMessageWriter.shutdownIfStarted();
+        DatabaseUtil.close();
+    }
+}
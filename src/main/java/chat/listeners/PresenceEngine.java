@@ -0,0 +1,227 @@
+package chat.listeners;
+
+import chat.cache.ContactGraphCache;
+import chat.endpoints.NotificationServerEndpoint;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在线状态广播引擎。
+ * 登录、登出、会话过期线程只负责把用户标记为“状态有变化”，真正的广播在专用线程上进行：
+ * 每个窗口结束时按用户当前的实际在线状态与上次广播的状态比较，窗口内上线又下线（或反之）的抖动直接忽略；
+ * 其余变化按接收者分组，每个在线好友只收到一条 status_batch 消息。
+ */
+public final class PresenceEngine {
+
+    private static final long WINDOW_MS = Long.getLong("chat.presence.windowMs", 500L);
+    // 读取好友列表失败后重试的最长间隔
+    private static final long MAX_RETRY_DELAY_MS = Long.getLong("chat.presence.maxRetryDelayMs", 30000L);
+    // 同一接收者未发出的 status_batch 共用一个合并键，按 userId 合并成一条；在线好友快照入队时会取代它
+    public static final String STATUS_BATCH_KEY = "status_batch";
+
+    // 窗口内状态发生过变化、等待广播的用户
+    private static final Set<Integer> dirtyUsers = ConcurrentHashMap.newKeySet();
+    // 最近一次向好友广播为在线的用户；不在其中即视为已广播为离线。只由广播线程修改
+    private static final Set<Integer> publishedOnline = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private static ScheduledExecutorService executor; // 由 PresenceEngine.class 保护，首次使用时创建
+    // 由 PresenceEngine.class 保护；shutdown 之后不再创建广播线程，状态变化直接丢弃
+    private static boolean stopped;
+    // 连续几次广播因读取好友列表失败而需要重试，决定下次重试的间隔。只由广播线程读写
+    private static int consecutiveFailures;
+
+    private static final AtomicLong changesReceived = new AtomicLong();
+    private static final AtomicLong changesDebounced = new AtomicLong();
+    private static final AtomicLong changesPublished = new AtomicLong();
+    private static final AtomicLong batchesSent = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+
+    private PresenceEngine() {}
+
+    /**
+     * 记录一次状态变化（上线或下线），在当前窗口结束时统一广播。调用方线程不做任何查询或推送。
+     * @param userId 状态发生变化的用户ID
+     */
+    public static void statusChanged(int userId) {
+        changesReceived.incrementAndGet();
+        dirtyUsers.add(userId);
+        scheduleFlush(WINDOW_MS);
+    }
+
+    /**
+     * 应用关闭时调用，丢弃尚未广播的状态变化并停止广播线程。之后到达的状态变化（连接陆续断开）也直接丢弃
+     */
+    public static void shutdown() {
+        ScheduledExecutorService current;
+        synchronized (PresenceEngine.class) {
+            stopped = true;
+            current = executor;
+            executor = null;
+        }
+        if (current != null) {
+            current.shutdownNow();
+        }
+        dirtyUsers.clear();
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("windowMs", WINDOW_MS);
+        metrics.put("received", changesReceived.get());
+        metrics.put("debounced", changesDebounced.get());
+        metrics.put("published", changesPublished.get());
+        metrics.put("batchesSent", batchesSent.get());
+        metrics.put("flushes", flushes.get());
+        metrics.put("retries", retries.get());
+        metrics.put("pending", dirtyUsers.size());
+        return metrics;
+    }
+
+    /**
+     * 尚未安排广播时，安排在 delayMs 之后广播一次；已安排的广播不会被推迟
+     */
+    private static void scheduleFlush(long delayMs) {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledExecutorService current = executor();
+        try {
+            if (current != null) {
+                current.schedule(PresenceEngine::flush, Math.max(0L, delayMs), TimeUnit.MILLISECONDS);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // shutdown 在取得调度器之后停止了它
+        }
+        // 应用正在关闭
+        flushScheduled.set(false);
+    }
+
+    /**
+     * @return 广播线程；shutdown 之后返回 null
+     */
+    private static synchronized ScheduledExecutorService executor() {
+        if (stopped) {
+            return null;
+        }
+        if (executor == null) {
+            ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "presence-engine");
+                thread.setDaemon(true);
+                return thread;
+            });
+            created.setRemoveOnCancelPolicy(true);
+            executor = created;
+        }
+        return executor;
+    }
+
+    private static void flush() {
+        // 先清除标记再取数据：取数据期间到达的变化会安排下一次广播，不会丢失
+        flushScheduled.set(false);
+        flushes.incrementAndGet();
+
+        Map<Integer, List<Map<String, Object>>> updatesByRecipient = new HashMap<>();
+        List<Integer> failed = new ArrayList<>();
+        Iterator<Integer> it = dirtyUsers.iterator();
+        while (it.hasNext()) {
+            int userId = it.next();
+            it.remove();
+
+            // 以当前实际状态为准，窗口内来回抖动的变化与上次广播的状态相同，无需通知
+            boolean online = ActiveUserListener.isUserActive(userId);
+            if (online == publishedOnline.contains(userId)) {
+                changesDebounced.incrementAndGet();
+                continue;
+            }
+            int[] friendIds;
+            try {
+                friendIds = ContactGraphCache.getContactIds(userId);
+            } catch (SQLException e) {
+                // 尚未广播，publishedOnline 保持原样，稍后重试时仍会与实际状态比较
+                System.err.println("[PresenceEngine] 查询用户 " + userId + " 的好友列表失败，稍后重试: " + e.getMessage());
+                failed.add(userId);
+                continue;
+            }
+            if (online) {
+                publishedOnline.add(userId);
+            } else {
+                publishedOnline.remove(userId);
+            }
+            changesPublished.incrementAndGet();
+
+            Map<String, Object> update = new HashMap<>();
+            update.put("userId", userId);
+            update.put("status", online ? "online" : "offline");
+            for (int friendId : friendIds) {
+                if (ActiveUserListener.isUserActive(friendId)) {
+                    updatesByRecipient.computeIfAbsent(friendId, k -> new ArrayList<>()).add(update);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, List<Map<String, Object>>> entry : updatesByRecipient.entrySet()) {
+            Map<String, Object> notification = new HashMap<>();
+            notification.put("type", "status_batch");
+            notification.put("updates", entry.getValue());
+            // 接收者上一批还没发出时合并进去而不是另占一格，队列满时也不会被当作普通消息丢弃
+            NotificationServerEndpoint.sendNotification(entry.getKey(), notification, STATUS_BATCH_KEY, PresenceEngine::mergeStatusBatches);
+            batchesSent.incrementAndGet();
+        }
+
+        if (failed.isEmpty()) {
+            consecutiveFailures = 0;
+            return;
+        }
+        // 循环结束后再放回，避免本次遍历再次取到它们；数据库不可用时按指数退避重试
+        dirtyUsers.addAll(failed);
+        retries.incrementAndGet();
+        consecutiveFailures = Math.min(consecutiveFailures + 1, 16);
+        long delay = Math.min(MAX_RETRY_DELAY_MS, Math.max(1L, WINDOW_MS) << consecutiveFailures);
+        scheduleFlush(delay);
+    }
+
+    /**
+     * 把两条尚未发出的 status_batch 合并成一条：按 userId 合并，同一用户以较新一批中的状态为准。
+     * @param queued 队列中较早的一批
+     * @param next 新的一批
+     */
+    private static String mergeStatusBatches(String queued, String next) {
+        Map<Integer, JsonObject> byUser = new LinkedHashMap<>();
+        for (String batch : new String[]{queued, next}) {
+            JsonArray updates = JsonParser.parseString(batch).getAsJsonObject().getAsJsonArray("updates");
+            for (JsonElement update : updates) {
+                JsonObject object = update.getAsJsonObject();
+                int userId = object.get("userId").getAsInt();
+                // 先移除再放入，合并后的顺序与状态变化的先后一致
+                byUser.remove(userId);
+                byUser.put(userId, object);
+            }
+        }
+        JsonArray merged = new JsonArray(byUser.size());
+        byUser.values().forEach(merged::add);
+        JsonObject notification = new JsonObject();
+        notification.addProperty("type", "status_batch");
+        notification.add("updates", merged);
+        return notification.toString();
+    }
+}
@@ -12,6 +12,7 @@ public class ChatMessage implements Serializable {
     private String content;
     private LocalDateTime timestamp;
     private boolean isRead; // 新增 isRead 字段
+    private transient int roomId; // 所属房间ID，仅供服务端内部使用，transient 使其不参与JSON序列化
 
     // 无参构造函数 (用于JSON反序列化)
     public ChatMessage() {}
@@ -56,6 +57,10 @@ public class ChatMessage implements Serializable {
         return isRead;
     }
 
+    public int getRoomId() {
+        return roomId;
+    }
+
     // Setters
     public void setId(Long id) {
         this.id = id;
@@ -80,4 +85,8 @@ public class ChatMessage implements Serializable {
     public void setIsRead(boolean read) { // setter方法名应为setIsRead
         isRead = read;
     }
+
+    public void setRoomId(int roomId) {
+        this.roomId = roomId;
+    }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ public class ChatRoom implements Serializable {
     private boolean isPrivate;
     private String partnerNickname; // 对于私聊，这是对方的昵称
     private int partnerId;          // 对于私聊，这是对方的用户ID
+    private String partnerAvatarVersion; // 对方头像的版本号（内容哈希）
 
     public ChatRoom(int id, boolean isPrivate, String partnerNickname, int partnerId) {
         this.id = id;
@@ -38,6 +39,10 @@ public class ChatRoom implements Serializable {
         return partnerId;
     }
 
+    public String getPartnerAvatarVersion() {
+        return partnerAvatarVersion;
+    }
+
     // Setters
     public void setId(int id) {
         this.id = id;
@@ -54,4 +59,8 @@ public class ChatRoom implements Serializable {
     public void setPartnerId(int partnerId) {
         this.partnerId = partnerId;
     }
+
+    public void setPartnerAvatarVersion(String partnerAvatarVersion) {
+        this.partnerAvatarVersion = partnerAvatarVersion;
+    }
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ public class FriendRequest implements Serializable {
     private int id;
     private int otherUserId; // 代表对方用户的ID（可能是发送者或接收者）
     private String otherUserNickname;
+    private String otherUserAvatarVersion; // 对方头像的版本号（内容哈希）
     private String type;     // 'received' (我收到的) 或 'sent' (我发出的)
     private String status;   // 'pending', 'accepted', 'rejected', 'rejected_seen'
 
@@ -36,6 +37,10 @@ public class FriendRequest implements Serializable {
         return otherUserNickname;
     }
 
+    public String getOtherUserAvatarVersion() {
+        return otherUserAvatarVersion;
+    }
+
     public String getType() {
         return type;
     }
@@ -57,6 +62,10 @@ public class FriendRequest implements Serializable {
         this.otherUserNickname = otherUserNickname;
     }
 
+    public void setOtherUserAvatarVersion(String otherUserAvatarVersion) {
+        this.otherUserAvatarVersion = otherUserAvatarVersion;
+    }
+
     public void setType(String type) {
         this.type = type;
     }
@@ -0,0 +1,35 @@
+package chat.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 一页历史消息（键集分页）。
+ * nextCursor 为本页最旧一条消息的ID，客户端加载更早的消息时把它作为 beforeId 传回。
+ */
+public class HistoryPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private List<ChatMessage> messages;
+    private boolean hasMore;
+    private Long nextCursor;
+
+    public HistoryPage(List<ChatMessage> messages, boolean hasMore) {
+        this.messages = messages;
+        this.hasMore = hasMore;
+        this.nextCursor = messages.isEmpty() ? null : messages.get(0).getId();
+    }
+
+    // Getters
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+}
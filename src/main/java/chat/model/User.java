@@ -8,6 +8,8 @@ public class User implements Serializable {
     private int id;
     private String account;
     private String nickname;
+    // 头像内容哈希，前端拼接到头像URL上 (&v=...)；没有头像时为 null
+    private String avatarVersion;
 
     public User(int id, String account, String nickname) {
         this.id = id;
@@ -21,4 +23,6 @@ public class User implements Serializable {
     public void setId(int id) { this.id = id; }
     public void setAccount(String account) { this.account = account; }
     public void setNickname(String nickname) { this.nickname = nickname; }
+    public String getAvatarVersion() { return avatarVersion; }
+    public void setAvatarVersion(String avatarVersion) { this.avatarVersion = avatarVersion; }
 }
\ No newline at end of file
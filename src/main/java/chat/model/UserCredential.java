@@ -0,0 +1,29 @@
+package chat.model;
+
+/**
+ * 登录校验用的用户信息：基本资料加上密码哈希。只在登录流程内部使用，不放入会话、不序列化给前端。
+ */
+public class UserCredential {
+    private final int id;
+    private final String account;
+    private final String nickname;
+    private final String passwordHash;
+
+    public UserCredential(int id, String account, String nickname, String passwordHash) {
+        this.id = id;
+        this.account = account;
+        this.nickname = nickname;
+        this.passwordHash = passwordHash;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * 校验通过后转换为存入会话的 User
+     */
+    public User toUser() {
+        return new User(id, account, nickname);
+    }
+}
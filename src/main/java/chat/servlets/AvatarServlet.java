@@ -1,6 +1,9 @@
 package chat.servlets;
 
 import chat.DatabaseUtil;
+import chat.cache.AvatarCache;
+import chat.util.AvatarStore;
+import chat.util.ImageUtil;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
@@ -9,10 +12,30 @@ import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 
+/**
+ * 输出用户头像：GET /api/avatar?userId=1[&v=头像哈希][&size=64]
+ * size 取不小于它的最小已生成尺寸（见 ImageUtil.AVATAR_SIZES），缺省为主图。
+ * ETag 为头像内容的 SHA-256。带 v 参数且与当前哈希一致的URL内容永远不变，可以长期缓存 (immutable)；
+ * 不带版本号的URL每次都需要重新验证。If-None-Match 命中时直接返回 304，不读头像文件。
+ * 头像文件由 AvatarStore 按哈希存放；容器支持 sendfile 时零拷贝输出，否则经 AvatarCache 从内存输出。
+ * 迁移工具执行前文件可能还不存在，此时从 users.avatar 列读取旧头像并补写文件。
+ */
 //@WebServlet("/api/avatar")
 public class AvatarServlet extends HttpServlet {
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE_CACHE_CONTROL = "private, no-cache";
+
+    // Tomcat 的 sendfile 请求属性（NIO/NIO2 连接器，useSendfile 默认开启）
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String userIdStr = req.getParameter("userId");
@@ -23,23 +46,131 @@ public class AvatarServlet extends HttpServlet {
 
         try {
             int userId = Integer.parseInt(userIdStr);
-            byte[] avatarBytes = DatabaseUtil.getAvatar(userId);
+            String version = req.getParameter("v");
+            String sizeStr = req.getParameter("size");
+            int size = (sizeStr != null) ? ImageUtil.avatarVariantSize(Integer.parseInt(sizeStr)) : ImageUtil.PRIMARY_AVATAR_SIZE;
 
-            if (avatarBytes != null && avatarBytes.length > 0) {
-                resp.setContentType("image/png"); // 之前已统一处理为PNG
-                resp.setContentLength(avatarBytes.length);
-                try (OutputStream os = resp.getOutputStream()) {
-                    os.write(avatarBytes);
-                }
-            } else {
+            // 优先用缓存中的版本号，未缓存或与URL版本号不一致时才查 avatar_hash 列
+            String avatarHash = AvatarCache.getVersion(userId, version);
+            if (avatarHash == null) {
                 // 如果用户没有头像，可以重定向到一个默认头像
                 // resp.sendRedirect("assets/icons/default-avatar.png");
                 resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            // 先确定实际输出的尺寸再比较 ETag：迁移过来的旧头像只有主图，请求其他尺寸时输出的是主图，
+            // 响应中的 ETag 也是主图的，按请求的尺寸比较会让这些头像的重新验证永远无法命中 304
+            if (size != ImageUtil.PRIMARY_AVATAR_SIZE && !Files.exists(AvatarStore.resolve(avatarHash, size))) {
+                size = ImageUtil.PRIMARY_AVATAR_SIZE;
+            }
+
+            String ifNoneMatch = req.getHeader("If-None-Match");
+            if (ifNoneMatch != null && etagMatches(ifNoneMatch, etag(avatarHash, size))) {
+                setCacheHeaders(resp, avatarHash, version, size);
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+                Path file = AvatarStore.resolve(avatarHash, size);
+                if (size == ImageUtil.PRIMARY_AVATAR_SIZE && !Files.exists(file)) {
+                    restoreLegacyAvatar(userId, avatarHash);
+                }
+                long length;
+                String contentType;
+                try {
+                    length = Files.size(file);
+                    contentType = AvatarStore.contentType(file);
+                } catch (NoSuchFileException e) {
+                    System.err.println("[AvatarServlet] 头像文件缺失: " + file);
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                setCacheHeaders(resp, avatarHash, version, size);
+                resp.setContentType(contentType);
+                resp.setContentLengthLong(length);
+                // 由容器在请求结束后用 sendfile (FileChannel.transferTo) 零拷贝输出文件
+                req.setAttribute(SENDFILE_FILENAME, file.toString());
+                req.setAttribute(SENDFILE_START, 0L);
+                req.setAttribute(SENDFILE_END, length);
+                return;
+            }
+
+            AvatarCache.Avatar avatar = AvatarCache.get(userId, avatarHash, size);
+            if (avatar == null && size != ImageUtil.PRIMARY_AVATAR_SIZE) {
+                // 检查之后文件才被删除（例如手工清理），仍以主图兜底
+                size = ImageUtil.PRIMARY_AVATAR_SIZE;
+                avatar = AvatarCache.get(userId, avatarHash, size);
+            }
+            if (avatar == null && restoreLegacyAvatar(userId, avatarHash)) {
+                size = ImageUtil.PRIMARY_AVATAR_SIZE;
+                avatar = AvatarCache.get(userId, avatarHash, size);
+            }
+            if (avatar == null) {
+                System.err.println("[AvatarServlet] 头像文件缺失: " + AvatarStore.resolve(avatarHash));
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            setCacheHeaders(resp, avatarHash, version, size);
+            resp.setContentType(avatar.getContentType());
+            resp.setContentLength(avatar.getLength());
+            try (OutputStream os = resp.getOutputStream()) {
+                avatar.writeTo(os);
             }
         } catch (NumberFormatException e) {
-            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "userId格式错误");
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "userId或size格式错误");
         } catch (SQLException e) {
             throw new ServletException("获取头像失败", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 头像文件缺失时，若 users.avatar 列中还有旧头像（AvatarMigrationTool 尚未执行），把它写入 AvatarStore
+     * @return 主图文件是否已补齐；旧头像不存在或内容与 avatar_hash 不一致时返回 false
+     */
+    private static boolean restoreLegacyAvatar(int userId, String avatarHash) throws SQLException, IOException {
+        byte[] legacy = DatabaseUtil.getLegacyAvatar(userId);
+        if (legacy == null || legacy.length == 0) {
+            return false;
+        }
+        String storedHash = AvatarStore.store(legacy);
+        if (!storedHash.equals(avatarHash)) {
+            System.err.println("[AvatarServlet] 用户 " + userId + " 的旧头像内容与 avatar_hash 不一致，跳过回退");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 各尺寸内容不同，ETag 也要区分；主图沿用头像哈希本身
+     */
+    private static String etag(String avatarHash, int size) {
+        return (size == ImageUtil.PRIMARY_AVATAR_SIZE) ? avatarHash : avatarHash + "-" + size;
+    }
+
+    private static void setCacheHeaders(HttpServletResponse resp, String avatarHash, String version, int size) {
+        resp.setHeader("ETag", "\"" + etag(avatarHash, size) + "\"");
+        // 只有版本号与实际内容一致时才允许长期缓存，避免旧版本号的URL缓存到新头像
+        resp.setHeader("Cache-Control", avatarHash.equals(version) ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+    }
+
+    /**
+     * 解析 If-None-Match，支持 *、多个ETag以及弱校验前缀 W/
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if ("*".equals(tag)) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("\"" + etag + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
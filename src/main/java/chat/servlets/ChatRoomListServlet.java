@@ -11,10 +11,14 @@ import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.List;
 
+/**
+ * 聊天室列表：GET /api/rooms[?limit=200][&cursor=nextCursor]，按房间ID升序分页，响应格式见 JsonPageWriter
+ */
 // 注意：这个Servlet依赖于web.xml进行注册
 public class ChatRoomListServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 200;
+    private static final int MAX_LIMIT = 500;
     private final Gson gson = new Gson();
 
     @Override
@@ -25,12 +29,17 @@ public class ChatRoomListServlet extends HttpServlet {
             return;
         }
         User currentUser = (User) session.getAttribute("user");
+        PageRequest page;
         try {
-            List<ChatRoom> rooms = DatabaseUtil.getChatRoomsForUser(currentUser.getId());
-
-            resp.setContentType("application/json");
-            resp.setCharacterEncoding("UTF-8");
-            resp.getWriter().write(gson.toJson(rooms));
+            page = PageRequest.parse(req, DEFAULT_LIMIT, MAX_LIMIT);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit或cursor格式错误");
+            return;
+        }
+        try {
+            JsonPageWriter<ChatRoom> out = new JsonPageWriter<>(resp, gson, ChatRoom.class, page, ChatRoom::getId);
+            DatabaseUtil.getChatRoomsForUser(currentUser.getId(), page.getCursor(), page.getFetchSize(), out);
+            out.finish();
         } catch (SQLException e) {
             throw new ServletException("获取聊天室列表失败", e);
         }
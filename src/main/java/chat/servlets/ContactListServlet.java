@@ -14,9 +14,13 @@ import jakarta.servlet.http.HttpSession;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.List;
 
+/**
+ * 联系人列表：GET /api/contacts[?limit=200][&cursor=nextCursor]，按联系人ID升序分页，响应格式见 JsonPageWriter
+ */
 public class ContactListServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 200;
+    private static final int MAX_LIMIT = 500;
     private final Gson gson = new GsonBuilder().create();
 
     @Override
@@ -28,11 +32,18 @@ public class ContactListServlet extends HttpServlet {
         }
         User currentUser = (User) session.getAttribute("user");
 
+        PageRequest page;
         try {
-            List<Contact> contacts = DatabaseUtil.getContacts(currentUser.getId());
-            resp.setContentType("application/json");
-            resp.setCharacterEncoding("UTF-8");
-            resp.getWriter().write(gson.toJson(contacts));
+            page = PageRequest.parse(req, DEFAULT_LIMIT, MAX_LIMIT);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit or cursor");
+            return;
+        }
+
+        try {
+            JsonPageWriter<Contact> out = new JsonPageWriter<>(resp, gson, Contact.class, page, Contact::getId);
+            DatabaseUtil.getContacts(currentUser.getId(), page.getCursor(), page.getFetchSize(), out);
+            out.finish();
         } catch (SQLException e) {
             throw new ServletException("Error retrieving contacts", e);
         }
@@ -14,14 +14,16 @@ import jakarta.servlet.http.HttpSession;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap; // 新增：导入HashMap
-import java.util.List;
 import java.util.Map;    // 新增：导入Map
 
 public class FriendRequestServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 200;
     private final Gson gson = new Gson();
 
     /**
-     * doGet方法用于获取当前用户的所有通知（收到的待处理请求、已发送的被处理请求）。
+     * doGet方法用于获取当前用户的通知（收到的待处理请求、已发送的被处理请求），按从新到旧分页。
+     * 参数 limit、cursor（上一页返回的 nextCursor），响应格式见 JsonPageWriter。
      */
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -32,12 +34,17 @@ public class FriendRequestServlet extends HttpServlet {
         }
 
         User currentUser = (User) session.getAttribute("user");
+        PageRequest page;
         try {
-            List<FriendRequest> notifications = DatabaseUtil.getNotifications(currentUser.getId());
-
-            resp.setContentType("application/json");
-            resp.setCharacterEncoding("UTF-8");
-            resp.getWriter().write(gson.toJson(notifications));
+            page = PageRequest.parse(req, DEFAULT_LIMIT, MAX_LIMIT);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit或cursor格式错误");
+            return;
+        }
+        try {
+            JsonPageWriter<FriendRequest> out = new JsonPageWriter<>(resp, gson, FriendRequest.class, page, FriendRequest::getId);
+            DatabaseUtil.getNotifications(currentUser.getId(), page.getCursor(), page.getFetchSize(), out);
+            out.finish();
 
         } catch (SQLException e) {
             throw new ServletException("获取通知列表时数据库操作失败", e);
@@ -101,6 +108,11 @@ public class FriendRequestServlet extends HttpServlet {
                     Map<String, String> notification = new HashMap<>();
                     notification.put("type", "request_responded");
                     NotificationServerEndpoint.sendNotification(senderId, notification);
+                    if ("accepted".equals(status)) {
+                        // 双方多了一个好友，重新下发在线好友快照
+                        NotificationServerEndpoint.sendOnlineContacts(currentUser.getId());
+                        NotificationServerEndpoint.sendOnlineContacts(senderId);
+                    }
 
                     resp.setStatus(HttpServletResponse.SC_OK);
                 } else {
@@ -0,0 +1,92 @@
+package chat.servlets;
+
+import chat.DatabaseUtil;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.function.ToIntFunction;
+
+/**
+ * 把分页查询的结果逐行写入响应：{"items":[...],"nextCursor":123}，没有下一页时 nextCursor 为 null。
+ * 作为 RowHandler 交给 DatabaseUtil，DatabaseUtil 读完一页并归还连接后逐行交给它，每行直接序列化到响应的输出流，
+ * 不会先拼成完整的 JSON 字符串。nextCursor 放在 items 之后，写完全部行时才需要知道。
+ * 查询应多取一条（PageRequest.getFetchSize()），多出的一行只用于判断是否还有下一页，不会输出。
+ * 查询因扫描上限提前结束时（truncated），即使本页不满也输出 nextCursor，客户端照常翻页即可。
+ */
+final class JsonPageWriter<T> implements DatabaseUtil.RowHandler<T> {
+
+    private final Gson gson;
+    private final Class<T> type;
+    private final int limit;
+    private final ToIntFunction<T> cursorOf;
+    private final HttpServletResponse resp;
+    private JsonWriter writer;
+    private int written;
+    private int lastCursor;
+    private boolean hasMore;
+    private int resumeAfter = -1;
+
+    /**
+     * @param cursorOf 取出一行对应的游标（下一页从它之后开始）
+     */
+    JsonPageWriter(HttpServletResponse resp, Gson gson, Class<T> type, PageRequest page, ToIntFunction<T> cursorOf) {
+        this.resp = resp;
+        this.gson = gson;
+        this.type = type;
+        this.limit = page.getLimit();
+        this.cursorOf = cursorOf;
+    }
+
+    @Override
+    public void handle(T row) throws IOException {
+        if (written == limit) {
+            hasMore = true;
+            return;
+        }
+        start();
+        gson.toJson(row, type, writer);
+        lastCursor = cursorOf.applyAsInt(row);
+        written++;
+    }
+
+    @Override
+    public void truncated(int resumeAfter) {
+        this.resumeAfter = resumeAfter;
+    }
+
+    /**
+     * 查询成功结束后调用，补上 nextCursor 并结束响应。
+     * 查询中途失败时不要调用，不完整的 JSON 会让客户端按失败处理。
+     */
+    void finish() throws IOException {
+        start();
+        writer.endArray();
+        // Gson 默认省略 null 字段，这里需要显式输出 "nextCursor":null
+        writer.setSerializeNulls(true);
+        writer.name("nextCursor");
+        if (hasMore) {
+            writer.value(lastCursor);
+        } else if (resumeAfter >= 0) {
+            writer.value(resumeAfter);
+        } else {
+            writer.nullValue();
+        }
+        writer.endObject();
+        writer.close();
+    }
+
+    // 第一行到达（或查询结束）时才开始写响应，查询在此之前失败仍可以返回 500
+    private void start() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        writer = gson.newJsonWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name("items");
+        writer.beginArray();
+    }
+}
@@ -3,6 +3,8 @@ package chat.servlets;
 import chat.DatabaseUtil;
 import chat.listeners.ActiveUserListener;
 import chat.model.User;
+import chat.model.UserCredential;
+import chat.util.PasswordVerifier;
 import com.google.gson.Gson;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
@@ -16,6 +18,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class LoginServlet extends HttpServlet {
+    private static final int RETRY_AFTER_SECONDS = Integer.getInteger("chat.login.retryAfterSeconds", 2);
     private final Gson gson = new Gson();
 
     @Override
@@ -34,7 +37,22 @@ public class LoginServlet extends HttpServlet {
         }
 
         try {
-            User userToLogin = DatabaseUtil.login(account.trim(), password.trim());
+            // 查询在请求线程上完成，BCrypt 校验交给专用线程池，繁忙时直接返回 503
+            UserCredential credential = DatabaseUtil.getLoginCredential(account.trim());
+            User userToLogin = null;
+            if (credential != null && PasswordVerifier.check(password.trim(), credential.getPasswordHash())) {
+                userToLogin = credential.toUser();
+                // 工作因子调整过时，借这次登录在后台把旧哈希升级（或降级）到当前配置
+                int userId = userToLogin.getId();
+                String oldHash = credential.getPasswordHash();
+                PasswordVerifier.rehashIfNeeded(password.trim(), oldHash, newHash -> {
+                    try {
+                        DatabaseUtil.updatePasswordHash(userId, oldHash, newHash);
+                    } catch (SQLException e) {
+                        System.err.println("[LoginServlet] 更新用户 " + userId + " 的密码哈希失败: " + e.getMessage());
+                    }
+                });
+            }
 
             if (userToLogin != null) {
                 // 关键修复点：检查该账号是否已在当前IP地址下登录
@@ -60,6 +78,11 @@ public class LoginServlet extends HttpServlet {
                 resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
                 resp.getWriter().write(gson.toJson(createErrorResponse("账号或密码错误")));
             }
+        } catch (PasswordVerifier.OverloadedException e) {
+            System.err.println("[LoginServlet] 登录请求被拒绝: " + e.getMessage());
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            resp.getWriter().write(gson.toJson(createErrorResponse("登录人数过多，请稍后重试")));
         } catch (SQLException e) {
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             resp.getWriter().write(gson.toJson(createErrorResponse("数据库登录验证失败")));
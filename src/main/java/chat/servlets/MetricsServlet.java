@@ -0,0 +1,57 @@
+package chat.servlets;
+
+import chat.ChatMessageWriter;
+import chat.cache.AvatarCache;
+import chat.cache.ContactGraphCache;
+import chat.cache.RecentMessageCache;
+import chat.cache.UserSearchIndex;
+import chat.endpoints.NotificationServerEndpoint;
+import chat.endpoints.ReadAckCoalescer;
+import chat.endpoints.SessionOutbox;
+import chat.listeners.PresenceEngine;
+import chat.util.AvatarProcessor;
+import chat.util.PasswordVerifier;
+import com.google.gson.Gson;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 以JSON形式输出服务端运行时指标（队列深度、丢弃计数等），便于压测和排查性能问题。
+ */
+// 注意：这个Servlet依赖于web.xml进行注册
+public class MetricsServlet extends HttpServlet {
+    private final Gson gson = new Gson();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HttpSession session = req.getSession(false);
+        if (session == null || session.getAttribute("user") == null) {
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("websocketOutbox", SessionOutbox.metrics());
+        metrics.put("notificationSockets", NotificationServerEndpoint.metrics());
+        metrics.put("messageWriter", ChatMessageWriter.metricsIfStarted());
+        metrics.put("recentMessageCache", RecentMessageCache.metrics());
+        metrics.put("readAcks", ReadAckCoalescer.metrics());
+        metrics.put("presence", PresenceEngine.metrics());
+        metrics.put("contactGraphCache", ContactGraphCache.metrics());
+        metrics.put("passwordVerifier", PasswordVerifier.metrics());
+        metrics.put("avatarCache", AvatarCache.metrics());
+        metrics.put("avatarProcessor", AvatarProcessor.metrics());
+        metrics.put("userSearchIndex", UserSearchIndex.metrics());
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(gson.toJson(metrics));
+    }
+}
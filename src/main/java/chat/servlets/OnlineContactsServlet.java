@@ -1,6 +1,6 @@
 package chat.servlets;
 
-import chat.DatabaseUtil;
+import chat.cache.ContactGraphCache;
 import chat.listeners.ActiveUserListener;
 import chat.model.User;
 import com.google.gson.Gson;
@@ -29,8 +29,8 @@ public class OnlineContactsServlet extends HttpServlet {
         User currentUser = (User) session.getAttribute("user");
 
         try {
-            // 步骤 1: 调用DatabaseUtil获取所有好友ID
-            List<Integer> allContactIds = DatabaseUtil.getContactIds(currentUser.getId());
+            // 步骤 1: 从好友关系缓存获取所有好友ID（未命中时才查询数据库）
+            int[] allContactIds = ContactGraphCache.getContactIds(currentUser.getId());
 
             // 步骤 2: 调用ActiveUserListener筛选出在线的好友ID
             List<Integer> onlineContactIds = ActiveUserListener.getOnlineContactIds(allContactIds);
@@ -0,0 +1,47 @@
+package chat.servlets;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * 列表接口的分页参数：limit（每页数量，超出上限时按上限处理）和 cursor（上一页返回的 nextCursor，第一页不传）。
+ * 响应格式见 JsonPageWriter。
+ */
+final class PageRequest {
+
+    private final int limit;
+    private final int cursor;
+
+    private PageRequest(int limit, int cursor) {
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @throws NumberFormatException 参数不是整数时抛出，调用方应返回 400
+     */
+    static PageRequest parse(HttpServletRequest req, int defaultLimit, int maxLimit) {
+        String limitParam = req.getParameter("limit");
+        String cursorParam = req.getParameter("cursor");
+        int limit = (limitParam != null) ? Math.max(1, Math.min(maxLimit, Integer.parseInt(limitParam))) : defaultLimit;
+        int cursor = (cursorParam != null) ? Integer.parseInt(cursorParam) : 0;
+        return new PageRequest(limit, cursor);
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * 游标，第一页为 0
+     */
+    int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 查询时多取的一条用于判断是否还有下一页
+     */
+    int getFetchSize() {
+        return limit + 1;
+    }
+}
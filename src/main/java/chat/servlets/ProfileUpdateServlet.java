@@ -0,0 +1,86 @@
+package chat.servlets;
+
+import chat.DatabaseUtil;
+import chat.model.User;
+import chat.util.AvatarProcessor;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.MultipartConfig;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.Part;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * 修改当前用户的昵称和/或头像：POST /api/user/profile (multipart，字段 nickname、avatar 均可选，至少提供一个)。
+ * 新头像与注册时一样经 AvatarProcessor 解码、校验并生成各个尺寸。
+ */
+//@WebServlet("/api/user/profile")
+@MultipartConfig
+public class ProfileUpdateServlet extends HttpServlet {
+    private static final int RETRY_AFTER_SECONDS = Integer.getInteger("chat.avatar.retryAfterSeconds", 2);
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HttpSession session = req.getSession(false);
+        if (session == null || session.getAttribute("user") == null) {
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "用户未登录");
+            return;
+        }
+        req.setCharacterEncoding("UTF-8");
+
+        User currentUser = (User) session.getAttribute("user");
+        String nickname = req.getParameter("nickname");
+        String trimmedNickname = (nickname != null && !nickname.trim().isEmpty()) ? nickname.trim() : null;
+        Part filePart = req.getPart("avatar");
+        boolean hasAvatar = filePart != null && filePart.getSize() > 0;
+
+        if (trimmedNickname == null && !hasAvatar) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "昵称和头像至少需要修改一项");
+            return;
+        }
+
+        try {
+            Map<Integer, byte[]> avatarVariants = null;
+            if (hasAvatar) {
+                try (InputStream avatarInputStream = filePart.getInputStream()) {
+                    avatarVariants = AvatarProcessor.process(avatarInputStream, filePart.getSize());
+                }
+            }
+
+            if (!DatabaseUtil.updateUserProfile(currentUser.getId(), trimmedNickname, avatarVariants)) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, "无法在数据库中找到用户信息");
+                return;
+            }
+
+            // 会话中的用户信息同步更新，之后的页面和 WebSocket 连接使用新的昵称和头像版本
+            if (trimmedNickname != null) {
+                currentUser.setNickname(trimmedNickname);
+            }
+            if (avatarVariants != null) {
+                currentUser.setAvatarVersion(DatabaseUtil.getAvatarHash(currentUser.getId()));
+            }
+            session.setAttribute("user", currentUser);
+
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            resp.getWriter().write("{\"message\": \"资料修改成功\"}");
+
+        } catch (AvatarProcessor.InvalidImageException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (AvatarProcessor.OverloadedException e) {
+            System.err.println("[ProfileUpdateServlet] 修改头像请求被拒绝: " + e.getMessage());
+            resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "服务器繁忙，请稍后重试");
+        } catch (SQLException e) {
+            throw new ServletException("修改资料时数据库操作失败", e);
+        }
+    }
+}
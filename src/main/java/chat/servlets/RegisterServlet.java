@@ -1,7 +1,7 @@
 package chat.servlets;
 
 import chat.DatabaseUtil;
-import chat.util.ImageUtil;
+import chat.util.AvatarProcessor;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
@@ -13,10 +13,12 @@ import jakarta.servlet.http.Part;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.Map;
 
 //@WebServlet("/api/register")
 @MultipartConfig
 public class RegisterServlet extends HttpServlet {
+    private static final int RETRY_AFTER_SECONDS = Integer.getInteger("chat.avatar.retryAfterSeconds", 2);
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -55,12 +57,12 @@ public class RegisterServlet extends HttpServlet {
                 return;
             }
 
-            byte[] avatarBytes;
+            Map<Integer, byte[]> avatarVariants;
             try (InputStream avatarInputStream = filePart.getInputStream()) {
-                avatarBytes = ImageUtil.resizeAvatar(avatarInputStream);
+                avatarVariants = AvatarProcessor.process(avatarInputStream, filePart.getSize());
             }
 
-            boolean success = DatabaseUtil.registerUser(trimmedAccount, trimmedPassword, trimmedNickname, avatarBytes, question, trimmedAnswer);
+            boolean success = DatabaseUtil.registerUser(trimmedAccount, trimmedPassword, trimmedNickname, avatarVariants, question, trimmedAnswer);
 
             if (success) {
                 resp.setStatus(HttpServletResponse.SC_CREATED);
@@ -68,6 +70,12 @@ public class RegisterServlet extends HttpServlet {
                 sendPlainTextError(resp, true, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "注册失败，请稍后重试");
             }
 
+        } catch (AvatarProcessor.InvalidImageException e) {
+            sendPlainTextError(resp, true, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (AvatarProcessor.OverloadedException e) {
+            System.err.println("[RegisterServlet] 注册请求被拒绝: " + e.getMessage());
+            resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            sendPlainTextError(resp, true, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "注册人数过多，请稍后重试");
         } catch (SQLException e) {
             throw new ServletException("注册时数据库操作失败", e);
         } catch (IOException e) {
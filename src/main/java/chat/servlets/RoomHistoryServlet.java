@@ -0,0 +1,70 @@
+package chat.servlets;
+
+import chat.DatabaseUtil;
+import chat.cache.RecentMessageCache;
+import chat.model.HistoryPage;
+import chat.model.User;
+import chat.util.GsonLocalDateTimeAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+
+/**
+ * 按游标分页加载房间的历史消息：GET /api/rooms/history?roomId=1&before=12345&limit=50
+ * before 省略时从最新一条开始；返回结果中的 nextCursor 作为下一页的 before。
+ */
+// 注意：这个Servlet依赖于web.xml进行注册
+public class RoomHistoryServlet extends HttpServlet {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new GsonLocalDateTimeAdapter())
+            .create();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HttpSession session = req.getSession(false);
+        if (session == null || session.getAttribute("user") == null) {
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        User currentUser = (User) session.getAttribute("user");
+
+        int roomId;
+        long beforeId;
+        int limit;
+        try {
+            roomId = Integer.parseInt(req.getParameter("roomId"));
+            String before = req.getParameter("before");
+            beforeId = (before == null || before.isEmpty()) ? Long.MAX_VALUE : Long.parseLong(before);
+            String limitParam = req.getParameter("limit");
+            limit = (limitParam == null || limitParam.isEmpty()) ? DEFAULT_PAGE_SIZE : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "参数格式错误");
+            return;
+        }
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        try {
+            if (!DatabaseUtil.isRoomMember(roomId, currentUser.getId())) {
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            HistoryPage page = RecentMessageCache.loadPage(roomId, beforeId, limit);
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            resp.getWriter().write(gson.toJson(page));
+        } catch (SQLException e) {
+            throw new ServletException("加载历史消息时数据库操作失败", e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package chat.servlets;
 
 import chat.DatabaseUtil;
+import chat.cache.UserSearchIndex;
 import chat.model.User;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -13,10 +14,17 @@ import jakarta.servlet.http.HttpSession;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.List;
 
 
+/**
+ * 搜索用户：GET /api/users/search?query=关键词[&limit=20][&cursor=nextCursor]，按用户ID升序分页，响应格式见 JsonPageWriter。
+ * 搜索索引未就绪（启动加载中或已禁用）时退回 SQL，只匹配账号和昵称、不匹配拼音首字母，
+ * 此时响应带 X-Search-Fallback: sql 头，客户端可据此提示结果可能不全。
+ */
 public class UserSearchServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 50;
+    private static final String FALLBACK_HEADER = "X-Search-Fallback";
     private final Gson gson = new GsonBuilder().create();
 
     @Override
@@ -35,13 +43,23 @@ public class UserSearchServlet extends HttpServlet {
             return;
         }
 
+        PageRequest page;
         try {
-            List<User> users = DatabaseUtil.searchUsers(currentUser.getId(), query.trim());
+            page = PageRequest.parse(req, DEFAULT_LIMIT, MAX_LIMIT);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid limit or cursor");
+            return;
+        }
 
-            resp.setContentType("application/json");
-            resp.setCharacterEncoding("UTF-8");
-            resp.getWriter().write(gson.toJson(users));
+        // 索引只会从未就绪变为就绪，这里判断为未就绪而实际走了索引时，只是多带一个提示头
+        if (!UserSearchIndex.isReady()) {
+            resp.setHeader(FALLBACK_HEADER, "sql");
+        }
 
+        try {
+            JsonPageWriter<User> out = new JsonPageWriter<>(resp, gson, User.class, page, User::getId);
+            DatabaseUtil.searchUsers(currentUser.getId(), query.trim(), page.getCursor(), page.getFetchSize(), out);
+            out.finish();
         } catch (SQLException e) {
             throw new ServletException("Database error during user search", e);
         }
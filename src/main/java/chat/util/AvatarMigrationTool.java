@@ -0,0 +1,44 @@
+package chat.util;
+
+import chat.DatabaseUtil;
+
+/**
+ * 把 users.avatar 列中的旧头像迁移到 AvatarStore（chat.avatar.dir 指定的目录）。
+ * 部署新版本后执行，服务无需停机：迁移前 AvatarServlet 会从旧列读取头像并补写文件；
+ * 迁移不改变 avatar_hash，运行中服务端的 AvatarCache 仍然有效，也不需要重启。可重复执行，已迁移的行会被跳过。
+ * 用法: java -Dchat.avatar.dir=<目录> -cp <classpath> chat.util.AvatarMigrationTool [每批行数=200] [--drop-column]
+ * 指定 --drop-column 时，全部迁移完成后删除 users.avatar 列以回收表空间。
+ */
+public final class AvatarMigrationTool {
+
+    private AvatarMigrationTool() {}
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = 200;
+        boolean dropColumn = false;
+        for (String arg : args) {
+            if ("--drop-column".equals(arg)) {
+                dropColumn = true;
+            } else {
+                batchSize = Integer.parseInt(arg);
+            }
+        }
+
+        System.out.println("头像目录: " + AvatarStore.getRoot());
+        try {
+            long start = System.nanoTime();
+            int migrated = DatabaseUtil.migrateAvatarBlobs(batchSize);
+            System.out.printf("迁移完成，共 %d 个头像，耗时 %.1f 秒%n", migrated, (System.nanoTime() - start) / 1e9);
+
+            if (dropColumn) {
+                if (DatabaseUtil.dropLegacyAvatarColumn()) {
+                    System.out.println("已删除 users.avatar 列");
+                } else {
+                    System.out.println("未删除 users.avatar 列（列不存在或仍有未迁移的头像）");
+                }
+            }
+        } finally {
+            DatabaseUtil.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package chat.util;
+
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.ExifUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在专用线程池上解码、缩放上传的头像，容器线程只负责读取上传内容并等待结果。
+ * 解码前先检查文件大小，再只读图片头得到宽高，超限的图片不会被完整解码；
+ * 大图按每个任务的内存预算做降采样解码 (subsampling)，解码出的像素数据不超过 chat.avatar.decodeBudgetBytes。
+ * 线程数和等待队列有界，队列满时立即拒绝（由调用方返回 503）。
+ */
+public final class AvatarProcessor {
+
+    private static final long MAX_UPLOAD_BYTES = Long.getLong("chat.avatar.maxUploadBytes", 5L * 1024 * 1024);
+    private static final int MAX_DIMENSION = Integer.getInteger("chat.avatar.maxDimension", 10000);
+    private static final long MAX_PIXELS = Long.getLong("chat.avatar.maxPixels", 40_000_000L);
+    private static final long DECODE_BUDGET_BYTES = Long.getLong("chat.avatar.decodeBudgetBytes", 16L * 1024 * 1024);
+    private static final int THREADS = Integer.getInteger("chat.avatar.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.avatar.queueSize", THREADS * 4);
+    private static final long TIMEOUT_MS = Long.getLong("chat.avatar.timeoutMs", 10000L);
+    // 降采样后短边至少保留主图尺寸的两倍，保证缩放质量
+    private static final int MIN_DECODED_SIDE = ImageUtil.PRIMARY_AVATAR_SIZE * 2;
+    // 按 ARGB 每像素 4 字节估算解码后的内存
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static final LatencyHistogram queueWait = new LatencyHistogram();
+    private static final LatencyHistogram processTime = new LatencyHistogram();
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong invalid = new AtomicLong();
+    private static final AtomicLong timedOut = new AtomicLong();
+    private static final AtomicLong subsampled = new AtomicLong();
+
+    private static volatile ThreadPoolExecutor executor;
+
+    private AvatarProcessor() {}
+
+    /**
+     * 线程池已满或等待超时时抛出，调用方应返回 503 并带上 Retry-After
+     */
+    public static class OverloadedException extends Exception {
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 上传的文件不是可识别的图片，或大小、尺寸超出限制时抛出，调用方应返回 400
+     */
+    public static class InvalidImageException extends Exception {
+        public InvalidImageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 读取上传的图片并生成各尺寸头像（见 ImageUtil.resizeAvatarVariants）。
+     * @param inputStream 上传文件的输入流
+     * @param declaredSize 上传文件的大小（如 Part.getSize()），未知时传 -1
+     * @return 尺寸 -> 编码后的图片，第一个为主图
+     * @throws InvalidImageException 文件过大、格式无法识别或宽高超限
+     * @throws OverloadedException 等待队列已满，或超过 timeoutMs 仍未得到结果
+     */
+    public static Map<Integer, byte[]> process(InputStream inputStream, long declaredSize)
+            throws IOException, InvalidImageException, OverloadedException {
+        if (declaredSize > MAX_UPLOAD_BYTES) {
+            invalid.incrementAndGet();
+            throw new InvalidImageException("头像文件不能超过 " + (MAX_UPLOAD_BYTES / 1024) + "KB");
+        }
+        byte[] upload = inputStream.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, MAX_UPLOAD_BYTES + 1));
+        if (upload.length > MAX_UPLOAD_BYTES) {
+            invalid.incrementAndGet();
+            throw new InvalidImageException("头像文件不能超过 " + (MAX_UPLOAD_BYTES / 1024) + "KB");
+        }
+
+        long enqueuedAt = System.nanoTime();
+        Future<Map<Integer, byte[]>> result;
+        try {
+            result = executor().submit(() -> {
+                long startedAt = System.nanoTime();
+                queueWait.record(startedAt - enqueuedAt);
+                try {
+                    return ImageUtil.resizeAvatarVariants(decode(upload));
+                } finally {
+                    processTime.record(System.nanoTime() - startedAt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new OverloadedException("头像处理队列已满");
+        }
+        submitted.incrementAndGet();
+
+        try {
+            return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOut.incrementAndGet();
+            throw new OverloadedException("头像处理等待超时");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OverloadedException("头像处理被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidImageException) {
+                invalid.incrementAndGet();
+                throw (InvalidImageException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException("头像处理失败", cause);
+        }
+    }
+
+    /**
+     * 只读图片头检查宽高，再按内存预算选择降采样倍数解码
+     */
+    private static BufferedImage decode(byte[] upload) throws IOException, InvalidImageException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(upload))) {
+            Iterator<ImageReader> readers = (iis != null) ? ImageIO.getImageReaders(iis) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new InvalidImageException("无法识别的图片格式");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, false);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION
+                        || (long) width * height > MAX_PIXELS) {
+                    throw new InvalidImageException("图片尺寸过大 (" + width + "x" + height + ")");
+                }
+
+                int factor = subsamplingFactor(width, height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                    subsampled.incrementAndGet();
+                }
+                BufferedImage image = reader.read(0, param);
+                return applyExifOrientation(reader, image);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 选出降采样倍数：解码后的像素数据必须在内存预算内；在此基础上，只要短边仍不小于 MIN_DECODED_SIDE 就尽量多降采样
+     */
+    private static int subsamplingFactor(int width, int height) {
+        int factor = 1;
+        while ((long) (width / factor) * (height / factor) * BYTES_PER_PIXEL > DECODE_BUDGET_BYTES) {
+            factor++;
+        }
+        while (Math.min(width, height) / (factor + 1) >= MIN_DECODED_SIDE) {
+            factor++;
+        }
+        return factor;
+    }
+
+    /**
+     * 按 EXIF 方向信息旋转图片（手机照片常见）；没有或读取失败时原样返回
+     */
+    private static BufferedImage applyExifOrientation(ImageReader reader, BufferedImage image) {
+        try {
+            Orientation orientation = ExifUtils.getExifOrientation(reader, 0);
+            return (orientation != null) ? ExifFilterUtils.getFilterForOrientation(orientation).apply(image) : image;
+        } catch (IOException | RuntimeException e) {
+            return image;
+        }
+    }
+
+    /**
+     * 应用关闭时调用；线程池从未创建过则什么也不做
+     */
+    public static void shutdown() {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        ThreadPoolExecutor current = executor;
+        metrics.put("threads", THREADS);
+        metrics.put("queueCapacity", QUEUE_CAPACITY);
+        metrics.put("active", current != null ? current.getActiveCount() : 0);
+        metrics.put("queued", current != null ? current.getQueue().size() : 0);
+        metrics.put("submitted", submitted.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("invalid", invalid.get());
+        metrics.put("timedOut", timedOut.get());
+        metrics.put("subsampled", subsampled.get());
+        metrics.put("queueWait", queueWait.snapshot());
+        metrics.put("processTime", processTime.snapshot());
+        return metrics;
+    }
+
+    private static ThreadPoolExecutor executor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (AvatarProcessor.class) {
+                current = executor;
+                if (current == null) {
+                    current = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(Math.max(1, QUEUE_CAPACITY)),
+                            r -> {
+                                Thread thread = new Thread(r, "avatar-processor");
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.AbortPolicy());
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,125 @@
+package chat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 按内容寻址的头像文件存储。文件名即头像内容的 SHA-256（与 users.avatar_hash 相同），
+ * 按哈希前两位分子目录：{chat.avatar.dir}/ab/abcdef...，其他尺寸为 abcdef...-64 等。
+ * 相同内容只存一份，文件写入后不再修改，因此可以放心地交给 sendfile 和浏览器长期缓存。
+ */
+public final class AvatarStore {
+
+    private static final Path ROOT = Paths.get(System.getProperty("chat.avatar.dir",
+            Paths.get(System.getProperty("user.home"), "chat-avatars").toString())).toAbsolutePath();
+
+    private AvatarStore() {}
+
+    /**
+     * 保存单张头像（只有主图），已存在相同内容的文件时直接复用
+     * @return 头像内容的哈希，即写入 users.avatar_hash 的引用
+     */
+    public static String store(byte[] bytes) throws IOException {
+        String hash = ImageUtil.contentHash(bytes);
+        Path target = resolve(hash);
+        if (!Files.exists(target)) {
+            writeAtomically(target, bytes);
+        }
+        return hash;
+    }
+
+    /**
+     * 保存各个尺寸的头像。文件名取主图的哈希，其他尺寸追加 "-尺寸" 后缀。
+     * 每个尺寸分别检查，缺哪个补哪个：主图已存在（如迁移过来的旧头像）而小尺寸缺失时也会补齐。
+     * 主图放在最后写。
+     * @param variants ImageUtil.resizeAvatarVariants 的结果
+     * @return 主图的哈希，即写入 users.avatar_hash 的引用
+     */
+    public static String store(Map<Integer, byte[]> variants) throws IOException {
+        byte[] primary = variants.get(ImageUtil.PRIMARY_AVATAR_SIZE);
+        String hash = ImageUtil.contentHash(primary);
+        for (Map.Entry<Integer, byte[]> variant : variants.entrySet()) {
+            if (variant.getKey() != ImageUtil.PRIMARY_AVATAR_SIZE) {
+                Path file = resolve(hash, variant.getKey());
+                if (!Files.exists(file)) {
+                    writeAtomically(file, variant.getValue());
+                }
+            }
+        }
+        Path target = resolve(hash);
+        if (!Files.exists(target)) {
+            writeAtomically(target, primary);
+        }
+        return hash;
+    }
+
+    /**
+     * 头像主图的文件路径（文件不一定存在）
+     */
+    public static Path resolve(String hash) {
+        if (hash == null || !hash.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("无效的头像哈希: " + hash);
+        }
+        return ROOT.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * 指定尺寸的头像文件路径（文件不一定存在，迁移过来的旧头像只有主图）
+     */
+    public static Path resolve(String hash, int size) {
+        Path primary = resolve(hash);
+        return (size == ImageUtil.PRIMARY_AVATAR_SIZE) ? primary : primary.resolveSibling(hash + "-" + size);
+    }
+
+    /**
+     * 读取头像内容
+     * @return 头像的byte数组；文件不存在时返回 null
+     */
+    public static byte[] read(String hash, int size) throws IOException {
+        try {
+            return Files.readAllBytes(resolve(hash, size));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 根据文件头判断头像文件的 Content-Type
+     */
+    public static String contentType(Path file) throws IOException {
+        byte[] head = new byte[8];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(head, 0, head.length);
+        }
+        return ImageUtil.contentType(Arrays.copyOf(head, length));
+    }
+
+    // 先写临时文件再原子改名，读取方不会看到写了一半的文件
+    private static void writeAtomically(Path target, byte[] bytes) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public static Path getRoot() {
+        return ROOT;
+    }
+}
@@ -0,0 +1,82 @@
+package chat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 非负 int 的并发位图集合，适合用户ID这类从 1 开始自增、分布稠密的整数。
+ * 读操作 (contains / filter) 无锁且不分配对象；写操作加锁，并在ID超出当前容量时整体扩容。
+ * 每个ID只占 1 bit，一百万个用户约 122KB。
+ */
+public final class ConcurrentIntBitSet {
+
+    private volatile AtomicLongArray words;
+
+    public ConcurrentIntBitSet(int initialCapacity) {
+        this.words = new AtomicLongArray(Math.max(1, (initialCapacity + 63) >>> 6));
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        AtomicLongArray current = words;
+        int index = value >>> 6;
+        return index < current.length() && (current.get(index) & (1L << value)) != 0;
+    }
+
+    public synchronized void add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be non-negative: " + value);
+        }
+        int index = value >>> 6;
+        AtomicLongArray current = words;
+        if (index >= current.length()) {
+            // 按 2 倍扩容；写操作都持有本对象锁，复制期间不会丢失其他线程的修改
+            int newLength = Math.max(index + 1, current.length() * 2);
+            AtomicLongArray grown = new AtomicLongArray(newLength);
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            words = grown;
+            current = grown;
+        }
+        current.set(index, current.get(index) | (1L << value));
+    }
+
+    public synchronized void remove(int value) {
+        if (value < 0) {
+            return;
+        }
+        AtomicLongArray current = words;
+        int index = value >>> 6;
+        if (index < current.length()) {
+            current.set(index, current.get(index) & ~(1L << value));
+        }
+    }
+
+    /**
+     * 把 values 中属于集合的元素按原顺序写入 dest，不分配任何对象。
+     * @param values 待筛选的值
+     * @param dest 结果数组，长度不能小于 values.length（可以就是 values 本身）
+     * @return 写入 dest 的元素个数
+     */
+    public int filter(int[] values, int[] dest) {
+        AtomicLongArray current = words;
+        int length = current.length();
+        int count = 0;
+        for (int value : values) {
+            int index = value >>> 6;
+            if (value >= 0 && index < length && (current.get(index) & (1L << value)) != 0) {
+                dest[count++] = value;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 当前位图占用的字节数
+     */
+    public long sizeInBytes() {
+        return (long) words.length() * Long.BYTES;
+    }
+}
@@ -2,32 +2,108 @@ package chat.util;
 
 import net.coobird.thumbnailator.Thumbnails;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * 图片处理工具类 (使用Thumbnailator库)
  */
 public final class ImageUtil {
 
-    private static final int AVATAR_SIZE = 128;
+    /**
+     * 生成的头像尺寸，从大到小。最大的是主图，它的内容哈希就是 users.avatar_hash。
+     */
+    public static final int[] AVATAR_SIZES = {128, 64, 32};
+    public static final int PRIMARY_AVATAR_SIZE = AVATAR_SIZES[0];
+
+    // 头像编码格式：png（默认，无损）或 jpg（体积更小）
+    private static final String AVATAR_FORMAT = "jpg".equalsIgnoreCase(System.getProperty("chat.avatar.format")) ? "jpg" : "png";
+    private static final float JPEG_QUALITY = 0.85f;
 
     private ImageUtil() {}
 
     /**
-     * 将输入的图片流缩放为标准头像尺寸。
-     * @param inputStream 原始图片的输入流
-     * @return 缩放后的PNG格式图片的字节数组
+     * 计算图片内容的 SHA-256（小写十六进制），与 MySQL 的 SHA2(x, 256) 结果一致。
+     * 用作头像的 ETag 和URL中的版本号。
+     */
+    public static String contentHash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM 不支持 SHA-256", e);
+        }
+    }
+
+    /**
+     * 将已解码的图片生成各个尺寸的头像，每一级都由上一级缩小得到。
+     * 解码、尺寸检查和方向校正由 AvatarProcessor 负责。
+     * @param source 解码后的原图
+     * @return 尺寸 -> 编码后的图片，按 AVATAR_SIZES 的顺序（从大到小），第一个为主图
      * @throws IOException 如果图片处理失败
      */
-    public static byte[] resizeAvatar(InputStream inputStream) throws IOException {
+    public static Map<Integer, byte[]> resizeAvatarVariants(BufferedImage source) throws IOException {
+        Map<Integer, byte[]> variants = new LinkedHashMap<>();
+        BufferedImage image = source;
+        for (int size : AVATAR_SIZES) {
+            image = Thumbnails.of(image).size(size, size).asBufferedImage();
+            variants.put(size, encode(image));
+        }
+        return variants;
+    }
+
+    /**
+     * 选出不小于请求尺寸的最小头像尺寸；请求超过最大尺寸时返回主图尺寸
+     */
+    public static int avatarVariantSize(int requestedSize) {
+        int chosen = PRIMARY_AVATAR_SIZE;
+        for (int size : AVATAR_SIZES) {
+            if (size >= requestedSize) {
+                chosen = size;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * 根据文件头判断图片的 Content-Type
+     */
+    public static String contentType(byte[] head) {
+        if (head.length >= 4 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+            return "image/png";
+        }
+        if (head.length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8) {
+            return "image/jpeg";
+        }
+        return "application/octet-stream";
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            Thumbnails.of(inputStream)
-                    .size(AVATAR_SIZE, AVATAR_SIZE)
-                    .outputFormat("png") // 统一输出为PNG
-                    .toOutputStream(baos);
+            if ("jpg".equals(AVATAR_FORMAT)) {
+                // JPEG 不支持透明通道，先铺白色背景，否则透明区域会变成黑色
+                BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = rgb.createGraphics();
+                try {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+                    g.drawImage(image, 0, 0, null);
+                } finally {
+                    g.dispose();
+                }
+                Thumbnails.of(rgb).scale(1.0).outputFormat("jpg").outputQuality(JPEG_QUALITY).toOutputStream(baos);
+            } else {
+                Thumbnails.of(image).scale(1.0).outputFormat("png").toOutputStream(baos);
+            }
             return baos.toByteArray();
         }
     }
-}
\ No newline at end of file
+}
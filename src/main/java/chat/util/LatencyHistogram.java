@@ -0,0 +1,85 @@
+package chat.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的延迟直方图，记录时不加锁、不分配对象。
+ * 桶的上界以毫秒计：1, 2, 5, 10, 20, 50 … 10000，最后一个桶收纳所有更慢的记录。
+ * 分位数按所在桶的上界估算。
+ */
+public final class LatencyHistogram {
+
+    private static final long[] BUCKET_UPPER_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_UPPER_BOUNDS_MS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos 耗时（纳秒）
+     */
+    public void record(long nanos) {
+        long nonNegative = Math.max(0L, nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nonNegative);
+        int index = 0;
+        while (index < BUCKET_UPPER_BOUNDS_MS.length && millis >= BUCKET_UPPER_BOUNDS_MS[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        count.increment();
+        totalNanos.add(nonNegative);
+    }
+
+    /**
+     * 导出为可直接序列化成JSON的快照：count、平均值、估算的 p50/p95/p99 以及各桶计数
+     */
+    public Map<String, Object> snapshot() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", total);
+        snapshot.put("meanMs", total == 0 ? 0.0 : totalNanos.sum() / 1_000_000.0 / count.sum());
+        snapshot.put("p50Ms", percentile(counts, total, 0.50));
+        snapshot.put("p95Ms", percentile(counts, total, 0.95));
+        snapshot.put("p99Ms", percentile(counts, total, 0.99));
+
+        Map<String, Long> bucketCounts = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            String label = (i < BUCKET_UPPER_BOUNDS_MS.length) ? "<" + BUCKET_UPPER_BOUNDS_MS[i] + "ms" : ">=" + BUCKET_UPPER_BOUNDS_MS[i - 1] + "ms";
+            bucketCounts.put(label, counts[i]);
+        }
+        snapshot.put("buckets", bucketCounts);
+        return snapshot;
+    }
+
+    private static Long percentile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return null;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // 最后一个桶没有上界，返回其下界
+                return (i < BUCKET_UPPER_BOUNDS_MS.length) ? BUCKET_UPPER_BOUNDS_MS[i] : BUCKET_UPPER_BOUNDS_MS[i - 1];
+            }
+        }
+        return BUCKET_UPPER_BOUNDS_MS[BUCKET_UPPER_BOUNDS_MS.length - 1];
+    }
+}
@@ -2,13 +2,25 @@ package chat.util;
 
 import org.mindrot.jbcrypt.BCrypt;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * 密码处理工具类
  * 使用 BCrypt 算法对密码进行哈希处理和验证。
  * 这是一个行业标准，可以有效防止彩虹表攻击。
+ * 工作因子 (cost) 的确定顺序：
+ * 1. 系统属性 chat.password.bcryptCost 直接指定；
+ * 2. 系统属性 chat.password.targetHashMs 指定目标耗时，应用启动时（见 initialize）在本机上逐级测量，选出不超过目标的最大 cost；
+ * 3. 都未设置时使用 BCrypt 的默认值 10。
  */
 public final class PasswordUtil {
 
+    private static final int DEFAULT_COST = 10;
+    private static final int MIN_CALIBRATED_COST = 8;
+    private static final int MAX_CALIBRATED_COST = 16;
+    private static final Pattern BCRYPT_PREFIX = Pattern.compile("^\\$2[abxy]?\\$(\\d{2})\\$");
+
     /**
      * 私有构造函数，防止该工具类被实例化。
      */
@@ -22,7 +34,80 @@ public final class PasswordUtil {
      * @return 哈希后的字符串
      */
     public static String hash(String plainText) {
-        return BCrypt.hashpw(plainText, BCrypt.gensalt());
+        return BCrypt.hashpw(plainText, BCrypt.gensalt(getCost()));
+    }
+
+    /**
+     * 当前使用的工作因子
+     */
+    public static int getCost() {
+        return CostHolder.COST;
+    }
+
+    /**
+     * 在应用启动时确定工作因子。配置了 chat.password.targetHashMs 时校准要做若干次 BCrypt 哈希，
+     * 放在启动阶段完成，以免由第一个登录/注册请求承担，其他请求线程还会阻塞在类初始化上。
+     */
+    public static void initialize() {
+        getCost();
+    }
+
+    /**
+     * 已存储的哈希的工作因子与当前配置不一致时返回 true，登录成功后应当用明文重新哈希。
+     * 格式无法识别的哈希不做处理。
+     */
+    public static boolean needsRehash(String hashed) {
+        if (hashed == null) {
+            return false;
+        }
+        Matcher matcher = BCRYPT_PREFIX.matcher(hashed);
+        return matcher.find() && Integer.parseInt(matcher.group(1)) != getCost();
+    }
+
+    /**
+     * 用指定的工作因子做一次哈希，返回耗时（毫秒）。供校准和基准测试使用。
+     */
+    public static double measureHashMillis(int cost) {
+        String salt = BCrypt.gensalt(cost);
+        long start = System.nanoTime();
+        BCrypt.hashpw("calibration-password", salt);
+        return (System.nanoTime() - start) / 1_000_000.0;
+    }
+
+    private static int resolveCost() {
+        Integer configured = Integer.getInteger("chat.password.bcryptCost");
+        if (configured != null) {
+            int cost = Math.max(4, Math.min(31, configured));
+            System.out.println("[PasswordUtil] 使用配置的 BCrypt 工作因子: " + cost);
+            return cost;
+        }
+        Long targetMs = Long.getLong("chat.password.targetHashMs");
+        if (targetMs == null) {
+            return DEFAULT_COST;
+        }
+        return calibrate(targetMs);
+    }
+
+    /**
+     * 从最小的 cost 开始逐级测量，返回单次哈希耗时不超过目标的最大 cost
+     */
+    private static int calibrate(long targetMs) {
+        measureHashMillis(4); // 预热
+        int chosen = MIN_CALIBRATED_COST;
+        for (int cost = MIN_CALIBRATED_COST; cost <= MAX_CALIBRATED_COST; cost++) {
+            double millis = measureHashMillis(cost);
+            System.out.printf("[PasswordUtil] BCrypt cost=%d 耗时 %.1f ms%n", cost, millis);
+            if (millis > targetMs) {
+                break;
+            }
+            chosen = cost;
+        }
+        System.out.println("[PasswordUtil] 目标耗时 " + targetMs + " ms，选定 BCrypt 工作因子: " + chosen);
+        return chosen;
+    }
+
+    private static final class CostHolder {
+        private static final int COST = resolveCost();
     }
 
     /**
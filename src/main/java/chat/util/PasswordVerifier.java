@@ -0,0 +1,157 @@
+package chat.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 在专用线程池上执行登录时的 BCrypt 校验。
+ * 线程数默认等于CPU核数、等待队列有界：登录洪峰时多出的请求立即被拒绝（由调用方返回 503），
+ * 而不是让所有容器线程都去做哈希计算，导致静态资源和其他接口一起排队。
+ */
+public final class PasswordVerifier {
+
+    private static final int THREADS = Integer.getInteger("chat.login.hashThreads", Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.login.hashQueueSize", THREADS * 16);
+    private static final long TIMEOUT_MS = Long.getLong("chat.login.hashTimeoutMs", 5000L);
+
+    private static final LatencyHistogram queueWait = new LatencyHistogram();
+    private static final LatencyHistogram hashTime = new LatencyHistogram();
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong timedOut = new AtomicLong();
+    private static final AtomicLong rehashed = new AtomicLong();
+    private static final AtomicLong rehashSkipped = new AtomicLong();
+
+    private static volatile ThreadPoolExecutor executor;
+
+    private PasswordVerifier() {}
+
+    /**
+     * 线程池已满或等待超时时抛出，调用方应返回 503 并带上 Retry-After
+     */
+    public static class OverloadedException extends Exception {
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 在线程池中校验密码，当前线程等待结果（等待期间不占用CPU）。
+     * @param plainText 用户输入的明文
+     * @param hashed 数据库中的哈希
+     * @return 是否匹配
+     * @throws OverloadedException 等待队列已满，或超过 hashTimeoutMs 仍未得到结果
+     */
+    public static boolean check(String plainText, String hashed) throws OverloadedException {
+        long enqueuedAt = System.nanoTime();
+        Future<Boolean> result;
+        try {
+            result = executor().submit(() -> {
+                long startedAt = System.nanoTime();
+                queueWait.record(startedAt - enqueuedAt);
+                try {
+                    return PasswordUtil.check(plainText, hashed);
+                } finally {
+                    hashTime.record(System.nanoTime() - startedAt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new OverloadedException("密码校验队列已满");
+        }
+        submitted.incrementAndGet();
+
+        try {
+            return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOut.incrementAndGet();
+            throw new OverloadedException("密码校验等待超时");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OverloadedException("密码校验被中断");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("密码校验失败", e.getCause());
+        }
+    }
+
+    /**
+     * 已存储哈希的工作因子与当前配置不一致时，在线程池中用明文重新哈希，完成后把新哈希交给 store 保存。
+     * 线程池繁忙时直接跳过，用户下次登录时再升级。
+     * @param plainText 刚刚校验通过的明文密码
+     * @param currentHash 数据库中的旧哈希
+     * @param store 保存新哈希的回调，在线程池线程上执行
+     */
+    public static void rehashIfNeeded(String plainText, String currentHash, Consumer<String> store) {
+        if (!PasswordUtil.needsRehash(currentHash)) {
+            return;
+        }
+        try {
+            executor().execute(() -> {
+                store.accept(PasswordUtil.hash(plainText));
+                rehashed.incrementAndGet();
+            });
+        } catch (RejectedExecutionException e) {
+            rehashSkipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 应用关闭时调用；线程池从未创建过则什么也不做
+     */
+    public static void shutdown() {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        ThreadPoolExecutor current = executor;
+        metrics.put("threads", THREADS);
+        metrics.put("queueCapacity", QUEUE_CAPACITY);
+        metrics.put("active", current != null ? current.getActiveCount() : 0);
+        metrics.put("queued", current != null ? current.getQueue().size() : 0);
+        metrics.put("submitted", submitted.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("timedOut", timedOut.get());
+        metrics.put("bcryptCost", PasswordUtil.getCost());
+        metrics.put("rehashed", rehashed.get());
+        metrics.put("rehashSkipped", rehashSkipped.get());
+        metrics.put("queueWait", queueWait.snapshot());
+        metrics.put("hashTime", hashTime.snapshot());
+        return metrics;
+    }
+
+    private static ThreadPoolExecutor executor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (PasswordVerifier.class) {
+                current = executor;
+                if (current == null) {
+                    current = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(Math.max(1, QUEUE_CAPACITY)),
+                            r -> {
+                                Thread thread = new Thread(r, "password-verifier");
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.AbortPolicy());
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+}
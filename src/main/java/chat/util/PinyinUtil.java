@@ -0,0 +1,65 @@
+package chat.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * 汉字拼音首字母，用于按 "zs" 搜到 "张三" 这样的昵称。
+ * 利用 GB2312 一级汉字按拼音排序的特点，按编码区间查首字母，不需要内置拼音字典；
+ * 二级汉字（按部首排序）和 GB2312 以外的字没有首字母，会被跳过。
+ */
+public final class PinyinUtil {
+
+    private static final Charset GB2312 = Charset.forName("GB2312");
+
+    // 各首字母在 GB2312 一级汉字中的起始编码（i、u、v 没有对应的汉字）
+    private static final int[] BOUNDARIES = {
+            0xB0A1, 0xB0C5, 0xB2C1, 0xB4EE, 0xB6EA, 0xB7A2, 0xB8C1, 0xB9FE, 0xBBF7, 0xBFA6, 0xC0AC, 0xC2E8,
+            0xC4C3, 0xC5B6, 0xC5BE, 0xC6DA, 0xC8BB, 0xC8F6, 0xCBFA, 0xCDDA, 0xCEF4, 0xD1B9, 0xD4D1
+    };
+    private static final char[] LETTERS = "abcdefghjklmnopqrstwxyz".toCharArray();
+    // 一级汉字的最后一个编码
+    private static final int LEVEL1_END = 0xD7F9;
+
+    private PinyinUtil() {}
+
+    /**
+     * 取字符串的拼音首字母（小写）。字母和数字原样保留（转为小写），其他字符跳过。
+     * @return 例如 "张三abc" -> "zsabc"
+     */
+    public static String initials(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (Character.isLetterOrDigit(c)) {
+                    sb.append(Character.toLowerCase(c));
+                }
+            } else {
+                char initial = initial(c);
+                if (initial != 0) {
+                    sb.append(initial);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 单个汉字的拼音首字母；不是一级汉字时返回 0
+     */
+    public static char initial(char c) {
+        byte[] bytes = String.valueOf(c).getBytes(GB2312);
+        if (bytes.length != 2) {
+            return 0;
+        }
+        int code = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        if (code < BOUNDARIES[0] || code > LEVEL1_END) {
+            return 0;
+        }
+        int index = BOUNDARIES.length - 1;
+        while (code < BOUNDARIES[index]) {
+            index--;
+        }
+        return LETTERS[index];
+    }
+}
@@ -0,0 +1,116 @@
+package chat;
+
+import chat.model.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 比较聊天消息的两条写入路径：逐条同步写入 (saveAndGetChatMessage) 与 write-behind 批量写入 (ChatMessageWriter)。
+ * 多个线程模拟并发发言，统计吞吐量和调用线程上的单条耗时；write-behind 的吞吐量以全部消息确认落库为准。
+ * 会向 DatabaseUtil 配置的数据库真实写入消息，请在测试库上运行。
+ * 用法: java -cp <classpath> chat.ChatMessageWriterBenchmark <房间ID> <发送者ID> [线程数=16] [每线程消息数=500]
+ */
+public final class ChatMessageWriterBenchmark {
+
+    private ChatMessageWriterBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: ChatMessageWriterBenchmark <房间ID> <发送者ID> [线程数=16] [每线程消息数=500]");
+            System.exit(1);
+        }
+        int roomId = Integer.parseInt(args[0]);
+        User sender = new User(Integer.parseInt(args[1]), "benchmark", "benchmark");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int perThread = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        // 写入器创建时以 MAX(id) 为起点自行分配ID，之后不能再有走 AUTO_INCREMENT 的写入插在它前面，
+        // 否则会占用写入器接下来要分配的ID。因此同步路径的预热在写入器创建之前完成，
+        // 同步路径的计时放在最后：写入器显式写入的ID已把 InnoDB 的自增计数器推到其后，不会冲突
+        run("预热", threads, 20, i -> DatabaseUtil.saveAndGetChatMessage(roomId, sender, "warmup " + i));
+        ChatMessageWriter writer = ChatMessageWriter.getInstance();
+        run("预热", threads, 20, i -> writer.submit(roomId, sender, "warmup " + i).getPersisted());
+
+        System.out.println("路径\t消息数\t耗时(ms)\t消息/秒\t调用p50(us)\t调用p99(us)");
+        print("write-behind", run("write-behind", threads, perThread,
+                i -> writer.submit(roomId, sender, "batched " + i).getPersisted()));
+        System.out.println("写入器指标: " + ChatMessageWriter.metricsIfStarted());
+        print("同步逐条", run("同步逐条", threads, perThread,
+                i -> DatabaseUtil.saveAndGetChatMessage(roomId, sender, "sync " + i)));
+
+        ChatMessageWriter.shutdownIfStarted();
+        DatabaseUtil.close();
+    }
+
+    private interface Send {
+        /**
+         * 发送一条消息；返回 CompletableFuture 时由基准测试等待其完成（即落库确认）
+         */
+        Object send(int sequence) throws SQLException;
+    }
+
+    private static Result run(String name, int threads, int perThread, Send send) throws Exception {
+        long[] callNanos = new long[threads * perThread];
+        // 每个线程各自收集落库确认，避免共享列表的同步开销
+        List<List<CompletableFuture<?>>> acks = new ArrayList<>(threads);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch startGate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t * perThread;
+            List<CompletableFuture<?>> threadAcks = new ArrayList<>(perThread);
+            acks.add(threadAcks);
+            Thread thread = new Thread(() -> {
+                try {
+                    startGate.await();
+                    for (int i = 0; i < perThread; i++) {
+                        long start = System.nanoTime();
+                        Object result = send.send(offset + i);
+                        callNanos[offset + i] = System.nanoTime() - start;
+                        if (result instanceof CompletableFuture<?> ack) {
+                            threadAcks.add(ack);
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, name + "-" + t);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        startGate.countDown();
+        done.await();
+        for (List<CompletableFuture<?>> threadAcks : acks) {
+            for (CompletableFuture<?> ack : threadAcks) {
+                ack.join();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        Arrays.sort(callNanos);
+        return new Result(callNanos, elapsed);
+    }
+
+    private static void print(String name, Result result) {
+        int count = result.callNanos.length;
+        System.out.printf("%s\t%d\t%d\t%.0f\t%.1f\t%.1f%n", name, count,
+                result.elapsedNanos / 1_000_000,
+                count / (result.elapsedNanos / 1e9),
+                result.callNanos[count / 2] / 1000.0,
+                result.callNanos[(int) (count * 0.99)] / 1000.0);
+    }
+
+    private record Result(long[] callNanos, long elapsedNanos) {}
+}
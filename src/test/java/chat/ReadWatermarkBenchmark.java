@@ -0,0 +1,169 @@
+package chat;
+
+import chat.model.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 比较“标记房间已读并取回结果”的两种写法：
+ * 现在的 markMessagesAsRead（一个连接、通常一条语句推进水位），
+ * 与原先的三次借连接序列（getPartnerId → UPDATE is_read → getReadMessageIdsByAuthor）。
+ * 输出每次操作的延迟和服务器收到的语句数（MySQL 的 Questions 计数）。水位分两种情况统计：
+ * 有新消息、水位前进（常见情况，一条语句），以及没有新消息、水位不变（多一次查询）。
+ * 会以房间中另一位用户的身份写入消息，原先的序列还会修改 chat_messages.is_read，请在测试库上运行。
+ * 用法: java -cp <classpath> chat.ReadWatermarkBenchmark <房间ID> <读取者ID> [次数=500]
+ */
+public final class ReadWatermarkBenchmark {
+
+    private ReadWatermarkBenchmark() {}
+
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 2) {
+            System.err.println("用法: ReadWatermarkBenchmark <房间ID> <读取者ID> [次数=500]");
+            System.exit(1);
+        }
+        int roomId = Integer.parseInt(args[0]);
+        int readerId = Integer.parseInt(args[1]);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        int partnerId = partnerId(roomId, readerId);
+        User partner = new User(partnerId, "benchmark", "benchmark");
+
+        // 预热连接池和服务端预编译语句缓存
+        for (int i = 0; i < 20; i++) {
+            DatabaseUtil.saveAndGetChatMessage(roomId, partner, "warmup " + i);
+            DatabaseUtil.markMessagesAsRead(roomId, readerId, 0L);
+            legacyMarkRead(roomId, readerId);
+        }
+
+        // 每轮先由对方发一条消息（不计时），这样计时的是水位真正前进的常见情况；插入本身的语句数从统计中扣除
+        long before = questions();
+        DatabaseUtil.saveAndGetChatMessage(roomId, partner, "calibrate");
+        long insertStatements = questions() - before - 1;
+
+        System.out.println("写法\t平均(us)\tp50(us)\tp99(us)\t语句数/次");
+        long[] nanos = new long[iterations];
+        before = questions();
+        for (int i = 0; i < iterations; i++) {
+            DatabaseUtil.saveAndGetChatMessage(roomId, partner, "advance " + i);
+            long start = System.nanoTime();
+            DatabaseUtil.markMessagesAsRead(roomId, readerId, 0L);
+            nanos[i] = System.nanoTime() - start;
+        }
+        print("水位推进", nanos, questions() - before - 1 - iterations * insertStatements, iterations);
+
+        long expected = maxMessageId(roomId);
+        long watermark = DatabaseUtil.markMessagesAsRead(roomId, readerId, 0L);
+        System.out.println("水位 " + watermark + (watermark == expected ? "，与房间最新消息ID一致" : "，与房间最新消息ID " + expected + " 不一致！"));
+
+        // 没有新消息时水位不变，驱动不返回键，走同一连接上的补充查询
+        before = questions();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            DatabaseUtil.markMessagesAsRead(roomId, readerId, 0L);
+            nanos[i] = System.nanoTime() - start;
+        }
+        print("水位不变", nanos, questions() - before - 1, iterations);
+
+        before = questions();
+        for (int i = 0; i < iterations; i++) {
+            DatabaseUtil.saveAndGetChatMessage(roomId, partner, "legacy " + i);
+            long start = System.nanoTime();
+            legacyMarkRead(roomId, readerId);
+            nanos[i] = System.nanoTime() - start;
+        }
+        print("原三次借连接", nanos, questions() - before - 1 - iterations * insertStatements, iterations);
+
+        DatabaseUtil.close();
+    }
+
+    private static int partnerId(int roomId, int readerId) throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM chat_room_members WHERE room_id = ? AND user_id != ?")) {
+            stmt.setInt(1, roomId);
+            stmt.setInt(2, readerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("无法找到房间中的另一位用户。");
+                }
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * 原先的写法：每一步各借一次连接
+     */
+    private static List<Integer> legacyMarkRead(int roomId, int readerId) throws SQLException {
+        int partnerId;
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM chat_room_members WHERE room_id = ? AND user_id != ?")) {
+            stmt.setInt(1, roomId);
+            stmt.setInt(2, readerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("无法找到房间中的另一位用户。");
+                }
+                partnerId = rs.getInt(1);
+            }
+        }
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("UPDATE chat_messages SET is_read = TRUE WHERE room_id = ? AND sender_id = ? AND is_read = FALSE")) {
+            stmt.setInt(1, roomId);
+            stmt.setInt(2, partnerId);
+            stmt.executeUpdate();
+        }
+        List<Integer> ids = new ArrayList<>();
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM chat_messages WHERE room_id = ? AND sender_id = ? AND is_read = TRUE")) {
+            stmt.setInt(1, roomId);
+            stmt.setInt(2, partnerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static long maxMessageId(int roomId) throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM chat_messages WHERE room_id = ?")) {
+            stmt.setInt(1, roomId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * 服务器累计收到的语句数；查询本身也算一次
+     */
+    private static long questions() throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW GLOBAL STATUS LIKE 'Questions'")) {
+            rs.next();
+            return rs.getLong(2);
+        }
+    }
+
+    private static void print(String name, long[] nanos, long statements, int iterations) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s\t%.1f\t%.1f\t%.1f\t%.2f%n", name,
+                Arrays.stream(sorted).average().orElse(0) / 1000.0,
+                sorted[iterations / 2] / 1000.0,
+                sorted[(int) (iterations * 0.99)] / 1000.0,
+                (double) statements / iterations);
+    }
+}
@@ -0,0 +1,137 @@
+package chat;
+
+import chat.model.ChatMessage;
+import chat.model.User;
+import chat.util.GsonLocalDateTimeAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+
+/**
+ * saveAndGetChatMessage 不再回读刚插入的行，这里验证它（以及 ChatMessageWriter）返回给客户端的JSON
+ * 与原先 “INSERT + JOIN users 回读” 得到的JSON逐字节相同，并用 MySQL 的 Questions 计数比较两种写法的往返次数。
+ * 会向 DatabaseUtil 配置的数据库真实写入消息，请在测试库上运行；发现不一致时以退出码 1 结束。
+ * 用法: java -cp <classpath> chat.SavedMessagePayloadCheck <房间ID> <发送者ID> [消息数=200]
+ */
+public final class SavedMessagePayloadCheck {
+
+    // 与 ChatServerEndpoint 广播时使用的配置一致
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new GsonLocalDateTimeAdapter())
+            .create();
+
+    private SavedMessagePayloadCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: SavedMessagePayloadCheck <房间ID> <发送者ID> [消息数=200]");
+            System.exit(1);
+        }
+        int roomId = Integer.parseInt(args[0]);
+        int senderId = Integer.parseInt(args[1]);
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        // 昵称与数据库中一致，才能比较 JOIN users 回读的结果
+        User sender = DatabaseUtil.getUserById(senderId);
+        if (sender == null) {
+            System.err.println("发送者 " + senderId + " 不存在");
+            System.exit(1);
+        }
+
+        int mismatches = 0;
+        long questionsBefore = questions();
+        for (int i = 0; i < count; i++) {
+            ChatMessage saved = DatabaseUtil.saveAndGetChatMessage(roomId, sender, "payload check " + i + " 中文 <b>");
+            mismatches += compare("saveAndGetChatMessage", saved);
+        }
+        // 比较时的回读本身每条占一次往返，这里只统计写入
+        long newPathQuestions = questions() - questionsBefore - count - 1;
+
+        questionsBefore = questions();
+        for (int i = 0; i < count; i++) {
+            legacySaveAndGet(roomId, senderId, "legacy " + i);
+        }
+        long legacyQuestions = questions() - questionsBefore - 1;
+
+        ChatMessageWriter writer = ChatMessageWriter.getInstance();
+        for (int i = 0; i < count; i++) {
+            ChatMessage broadcast = writer.submit(roomId, sender, "write-behind check " + i).getPersisted().join();
+            mismatches += compare("ChatMessageWriter", broadcast);
+        }
+
+        System.out.printf("每条消息的数据库往返: 现在 %.2f，原先(INSERT + 回读) %.2f%n",
+                (double) newPathQuestions / count, (double) legacyQuestions / count);
+        System.out.println(mismatches == 0 ? "JSON 全部一致" : "JSON 不一致的消息数: " + mismatches);
+
+        ChatMessageWriter.shutdownIfStarted();
+        DatabaseUtil.close();
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    private static int compare(String path, ChatMessage inMemory) throws SQLException {
+        String expected = gson.toJson(readBack(inMemory.getId()));
+        String actual = gson.toJson(inMemory);
+        if (expected.equals(actual)) {
+            return 0;
+        }
+        System.err.println("[" + path + "] 回读: " + expected);
+        System.err.println("[" + path + "] 广播: " + actual);
+        return 1;
+    }
+
+    /**
+     * 原先的写入方式：INSERT 后换一个连接用 JOIN users 回读整行
+     */
+    private static ChatMessage legacySaveAndGet(int roomId, int senderId, String content) throws SQLException {
+        String sql = "INSERT INTO chat_messages (room_id, sender_id, message_content) VALUES (?, ?, ?)";
+        long id;
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setInt(1, roomId);
+            stmt.setInt(2, senderId);
+            stmt.setString(3, content);
+            stmt.executeUpdate();
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                keys.next();
+                id = keys.getLong(1);
+            }
+        }
+        return readBack(id);
+    }
+
+    /**
+     * 原 getMessageById 的查询，即客户端以前收到的内容
+     */
+    private static ChatMessage readBack(long messageId) throws SQLException {
+        String sql = "SELECT m.id, m.sender_id, u.nickname, m.message_content, m.created_at, m.is_read FROM chat_messages m " +
+                "JOIN users u ON m.sender_id = u.id WHERE m.id = ?";
+        try (Connection conn = DatabaseUtil.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, messageId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("消息 " + messageId + " 不存在");
+                }
+                return new ChatMessage(rs.getLong("id"), rs.getInt("sender_id"), rs.getString("nickname"),
+                        rs.getString("message_content"), rs.getTimestamp("created_at").toLocalDateTime(), rs.getBoolean("is_read"));
+            }
+        }
+    }
+
+    /**
+     * 服务器累计收到的语句数；查询本身也算一次
+     */
+    private static long questions() throws SQLException {
+        try (Connection conn = DatabaseUtil.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW GLOBAL STATUS LIKE 'Questions'")) {
+            rs.next();
+            return rs.getLong(2);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package chat.cache;
+
+import chat.model.User;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * 用随机生成的用户测量 NgramIndex 的构建耗时、内存占用和各类查询的延迟，不需要数据库。
+ * 用法: java -Xmx4g -cp <classpath> chat.cache.UserSearchIndexBenchmark [用户数=1000000] [每类查询次数=2000]
+ */
+public final class UserSearchIndexBenchmark {
+
+    private static final String ALNUM = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final Charset GB2312 = Charset.forName("GB2312");
+    private static final int PAGE_SIZE = 20;
+
+    private UserSearchIndexBenchmark() {}
+
+    public static void main(String[] args) {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(42);
+
+        List<User> users = new ArrayList<>(userCount);
+        for (int id = 1; id <= userCount; id++) {
+            users.add(new User(id, randomAccount(random), randomNickname(random)));
+        }
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        NgramIndex index = new NgramIndex();
+        for (User user : users) {
+            index.put(user);
+        }
+        index.compact();
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+        long heapAfter = usedHeap();
+
+        System.out.printf("用户数 %d，构建耗时 %d ms，gram 数 %d，倒排项 %d，索引约占堆 %d MB%n",
+                userCount, buildMillis, index.gramCount(), index.postingCount(), (heapAfter - heapBefore) / (1024 * 1024));
+
+        // 模拟一个有 200 个好友的用户
+        int[] contacts = random.ints(200, 1, userCount + 1).sorted().distinct().toArray();
+        IntPredicate excluded = userId -> userId == 1 || Arrays.binarySearch(contacts, userId) >= 0;
+
+        System.out.println("查询类型\t平均(us)\tp50(us)\tp99(us)\t平均结果数\t达到扫描上限次数");
+        run("单字符", index, excluded, queries, () -> String.valueOf(ALNUM.charAt(random.nextInt(ALNUM.length()))));
+        run("账号2字符", index, excluded, queries, () -> substring(users.get(random.nextInt(userCount)).getAccount(), 2, random));
+        run("账号4字符", index, excluded, queries, () -> substring(users.get(random.nextInt(userCount)).getAccount(), 4, random));
+        run("昵称2个汉字", index, excluded, queries, () -> substring(users.get(random.nextInt(userCount)).getNickname(), 2, random));
+        run("拼音首字母", index, excluded, queries, () -> "" + (char) ('a' + random.nextInt(26)) + (char) ('a' + random.nextInt(26)));
+        run("无结果", index, excluded, queries, () -> "zzzz" + random.nextInt(1000));
+    }
+
+    private static void run(String name, NgramIndex index, IntPredicate excluded, int queries, Supplier<String> querySupplier) {
+        // 预热
+        for (int i = 0; i < queries; i++) {
+            index.search(querySupplier.get(), excluded, 0, PAGE_SIZE, 100000);
+        }
+        long[] nanos = new long[queries];
+        long totalResults = 0;
+        int truncated = 0;
+        for (int i = 0; i < queries; i++) {
+            String query = querySupplier.get();
+            long start = System.nanoTime();
+            NgramIndex.SearchResult result = index.search(query, excluded, 0, PAGE_SIZE, 100000);
+            nanos[i] = System.nanoTime() - start;
+            totalResults += result.users.size();
+            if (result.isTruncated()) {
+                truncated++;
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%s\t%.1f\t%.1f\t%.1f\t%.1f\t%d%n", name,
+                Arrays.stream(nanos).average().orElse(0) / 1000.0,
+                nanos[queries / 2] / 1000.0,
+                nanos[(int) (queries * 0.99)] / 1000.0,
+                (double) totalResults / queries,
+                truncated);
+    }
+
+    private static String randomAccount(Random random) {
+        int length = 6 + random.nextInt(8);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALNUM.charAt(random.nextInt(ALNUM.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 七成为 2~3 个 GB2312 一级汉字，其余为英文昵称
+     */
+    private static String randomNickname(Random random) {
+        if (random.nextInt(10) < 3) {
+            return randomAccount(random);
+        }
+        int length = 2 + random.nextInt(2);
+        byte[] bytes = new byte[length * 2];
+        for (int i = 0; i < length; i++) {
+            bytes[i * 2] = (byte) (0xB0 + random.nextInt(0xD7 - 0xB0));
+            bytes[i * 2 + 1] = (byte) (0xA1 + random.nextInt(0xFE - 0xA1));
+        }
+        return new String(bytes, GB2312);
+    }
+
+    private static String substring(String text, int length, Random random) {
+        if (text.length() <= length) {
+            return text;
+        }
+        int from = random.nextInt(text.length() - length + 1);
+        return text.substring(from, from + length);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,49 @@
+package chat.endpoints;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基准测试用的 WebSocket 会话替身：只实现 getId/isOpen/getUserProperties/getAsyncRemote，
+ * 异步发送立即以成功回调，不经过网络，测得的只是服务端自身的开销。
+ */
+final class FakeSessions {
+
+    // 所有替身会话累计“发出”的帧数
+    static final AtomicLong sentFrames = new AtomicLong();
+
+    private FakeSessions() {}
+
+    static Session open(String id) {
+        Map<String, Object> userProperties = new ConcurrentHashMap<>();
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                FakeSessions.class.getClassLoader(), new Class<?>[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if ("sendText".equals(method.getName()) && args.length == 2) {
+                        sentFrames.incrementAndGet();
+                        ((SendHandler) args[1]).onResult(new SendResult());
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        return (Session) Proxy.newProxyInstance(
+                FakeSessions.class.getClassLoader(), new Class<?>[]{Session.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getId", "toString" -> id;
+                    case "isOpen" -> true;
+                    case "getUserProperties" -> userProperties;
+                    case "getAsyncRemote" -> async;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "setMaxIdleTimeout", "close" -> null;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
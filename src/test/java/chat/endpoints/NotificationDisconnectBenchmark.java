@@ -0,0 +1,110 @@
+package chat.endpoints;
+
+import jakarta.websocket.Session;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模拟通知连接的断线风暴：先建立 N 个连接，再全部断开，比较两种找回会话所属用户的方式。
+ * 现在的 onClose 直接从会话属性取用户ID，每次断开的耗时应与 N 无关（总耗时线性增长）；
+ * 原先的 findUserIdBySession 遍历全部连接，每次断开的耗时随 N 线性增长（总耗时平方增长）。不需要数据库。
+ * 最大与最小连接数下每次断开的耗时之比超过 MAX_GROWTH 时以非 0 状态退出。
+ * 用法: java -cp <classpath> chat.endpoints.NotificationDisconnectBenchmark
+ */
+public final class NotificationDisconnectBenchmark {
+
+    private static final int[] CYCLE_COUNTS = {1_000, 2_500, 5_000, 10_000};
+    // 每个连接数重复测量，取最小值以排除 GC 和 JIT 的干扰
+    private static final int REPETITIONS = 5;
+    // 连接数增加 10 倍时，每次断开的耗时最多允许增长到这个倍数；平方复杂度会增长约 10 倍
+    private static final double MAX_GROWTH = 3.0;
+
+    private NotificationDisconnectBenchmark() {}
+
+    public static void main(String[] args) {
+        PrintStream console = System.out;
+        NotificationServerEndpoint endpoint = new NotificationServerEndpoint();
+        // 预热
+        run(endpoint, 2_000, console);
+        runLegacy(2_000);
+
+        console.println("连接数\t属性取ID(ns/次断开)\t原遍历查找(ns/次断开)");
+        double[] current = new double[CYCLE_COUNTS.length];
+        for (int c = 0; c < CYCLE_COUNTS.length; c++) {
+            int cycles = CYCLE_COUNTS[c];
+            current[c] = Double.MAX_VALUE;
+            for (int r = 0; r < REPETITIONS; r++) {
+                current[c] = Math.min(current[c], run(endpoint, cycles, console));
+            }
+            double legacy = runLegacy(cycles);
+            console.printf("%d\t%.0f\t%.0f%n", cycles, current[c], legacy);
+        }
+
+        // 总耗时应随连接数线性增长，即每次断开的耗时基本不变
+        double growth = current[current.length - 1] / current[0];
+        if (growth > MAX_GROWTH) {
+            console.printf("失败: 连接数从 %d 增至 %d，每次断开的耗时增长了 %.1f 倍（上限 %.1f 倍），断开不再是常数时间%n",
+                    CYCLE_COUNTS[0], CYCLE_COUNTS[CYCLE_COUNTS.length - 1], growth, MAX_GROWTH);
+            System.exit(1);
+        }
+        console.printf("通过: 每次断开的耗时增长 %.1f 倍（上限 %.1f 倍）%n", growth, MAX_GROWTH);
+    }
+
+    private static double run(NotificationServerEndpoint endpoint, int cycles, PrintStream console) {
+        List<Session> sessions = new ArrayList<>(cycles);
+        for (int i = 0; i < cycles; i++) {
+            Session session = FakeSessions.open("n" + i);
+            // 与 onOpen 中的登记步骤相同（onOpen 还会读取好友快照，需要数据库）
+            session.getUserProperties().put(NotificationServerEndpoint.USER_ID_PROPERTY, i + 1);
+            SessionOutbox.attach(session, 128, SessionOutbox.OverflowPolicy.COALESCE);
+            NotificationServerEndpoint.registerUserSession(i + 1, session);
+            sessions.add(session);
+        }
+        // 断开顺序与连接顺序无关
+        Collections.shuffle(sessions, new Random(cycles));
+        // onClose 每次都会打印一行日志，测量时丢弃输出，只计算断开本身
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            for (Session session : sessions) {
+                endpoint.onClose(session);
+            }
+            return (double) (System.nanoTime() - start) / cycles;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * 原先的结构：userId → Session，断开时遍历全部项找出会话对应的用户
+     */
+    private static double runLegacy(int cycles) {
+        Map<Integer, Session> userSessions = new ConcurrentHashMap<>();
+        List<Session> sessions = new ArrayList<>(cycles);
+        for (int i = 0; i < cycles; i++) {
+            Session session = FakeSessions.open("l" + i);
+            userSessions.put(i + 1, session);
+            sessions.add(session);
+        }
+        Collections.shuffle(sessions, new Random(cycles));
+        long start = System.nanoTime();
+        for (Session session : sessions) {
+            Integer userId = userSessions.entrySet().stream()
+                    .filter(entry -> entry.getValue().equals(session))
+                    .map(Map.Entry::getKey)
+                    .findFirst()
+                    .orElse(null);
+            if (userId != null) {
+                userSessions.remove(userId);
+            }
+        }
+        return (double) (System.nanoTime() - start) / cycles;
+    }
+}
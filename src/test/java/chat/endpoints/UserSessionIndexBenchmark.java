@@ -0,0 +1,85 @@
+package chat.endpoints;
+
+import chat.model.User;
+import jakarta.websocket.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * 比较“向一个用户投递一条聊天消息”的开销：按 userSessions 索引投递 与 原先扫描全部会话。
+ * 在线会话数逐级增大，索引方式的单次耗时应基本不变，扫描方式随会话数线性增长。不需要数据库。
+ * 用法: java -cp <classpath> chat.endpoints.UserSessionIndexBenchmark [每级投递次数=20000]
+ */
+public final class UserSessionIndexBenchmark {
+
+    private static final int[] SESSION_COUNTS = {100, 1_000, 5_000, 20_000};
+    private static final String MESSAGE = "{\"type\":\"new_message\",\"data\":{}}";
+
+    private UserSessionIndexBenchmark() {}
+
+    public static void main(String[] args) {
+        int deliveries = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Random random = new Random(42);
+
+        System.out.println("会话数\t索引(ns/次)\t全量扫描(ns/次)");
+        for (int sessionCount : SESSION_COUNTS) {
+            // 平均每个用户两个连接（多标签页）
+            int userCount = sessionCount / 2;
+            Set<Session> allSessions = new CopyOnWriteArraySet<>();
+            List<Session> opened = new ArrayList<>(sessionCount);
+            for (int i = 0; i < sessionCount; i++) {
+                int userId = 1 + i % userCount;
+                Session session = FakeSessions.open("s" + i);
+                session.getUserProperties().put("user", new User(userId, "user" + userId, "用户" + userId));
+                SessionOutbox.attach(session, 256, SessionOutbox.OverflowPolicy.DISCONNECT);
+                ChatServerEndpoint.registerUserSession(userId, session);
+                allSessions.add(session);
+                opened.add(session);
+            }
+
+            int[] targets = random.ints(deliveries, 1, userCount + 1).toArray();
+            // 预热
+            for (int i = 0; i < 3; i++) {
+                measureIndexed(targets);
+                measureScan(allSessions, targets);
+            }
+            double indexed = measureIndexed(targets);
+            double scan = measureScan(allSessions, targets);
+            System.out.printf("%d\t%.0f\t%.0f%n", sessionCount, indexed, scan);
+
+            for (Session session : opened) {
+                User user = (User) session.getUserProperties().get("user");
+                ChatServerEndpoint.unregisterUserSession(user.getId(), session);
+            }
+        }
+        System.out.println("累计发出帧数: " + FakeSessions.sentFrames.get());
+    }
+
+    private static double measureIndexed(int[] targets) {
+        long start = System.nanoTime();
+        for (int userId : targets) {
+            ChatServerEndpoint.sendMessageToUser(userId, MESSAGE);
+        }
+        return (double) (System.nanoTime() - start) / targets.length;
+    }
+
+    /**
+     * 建立 userSessions 索引之前的投递方式：遍历全部会话，逐个取出 user 属性比较ID
+     */
+    private static double measureScan(Set<Session> allSessions, int[] targets) {
+        long start = System.nanoTime();
+        for (int userId : targets) {
+            for (Session s : allSessions) {
+                User user = (User) s.getUserProperties().get("user");
+                if (s.isOpen() && user != null && user.getId() == userId) {
+                    SessionOutbox.of(s).offer(MESSAGE);
+                }
+            }
+        }
+        return (double) (System.nanoTime() - start) / targets.length;
+    }
+}
@@ -0,0 +1,36 @@
+package chat.util;
+
+/**
+ * 测量本机上各个 BCrypt 工作因子的单次哈希耗时，用于选择 chat.password.bcryptCost / chat.password.targetHashMs。
+ * 用法: java -cp <classpath> chat.util.BcryptCostBenchmark [最小cost=8] [最大cost=14] [每级次数=5]
+ */
+public final class BcryptCostBenchmark {
+
+    private BcryptCostBenchmark() {}
+
+    public static void main(String[] args) {
+        int minCost = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int maxCost = args.length > 1 ? Integer.parseInt(args[1]) : 14;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // 预热，避免第一次测量包含类加载和JIT编译的时间
+        for (int i = 0; i < 3; i++) {
+            PasswordUtil.measureHashMillis(minCost);
+        }
+
+        System.out.println("cost\tavg(ms)\tmin(ms)\tmax(ms)\tlogins/s/core");
+        for (int cost = minCost; cost <= maxCost; cost++) {
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (int i = 0; i < iterations; i++) {
+                double millis = PasswordUtil.measureHashMillis(cost);
+                total += millis;
+                min = Math.min(min, millis);
+                max = Math.max(max, millis);
+            }
+            double avg = total / iterations;
+            System.out.printf("%d\t%.1f\t%.1f\t%.1f\t%.1f%n", cost, avg, min, max, 1000.0 / avg);
+        }
+    }
+}
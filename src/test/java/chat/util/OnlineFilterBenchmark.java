@@ -0,0 +1,85 @@
+package chat.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * 比较在 2000 个好友中筛选在线者的两种方式：ConcurrentIntBitSet.filter 与原先
+ * ConcurrentMap&lt;Integer, CopyOnWriteArrayList&gt; 上装箱的 stream 过滤。
+ * 输出每次筛选的耗时和调用线程分配的字节数（HotSpot 的线程分配计数），位图方式应为 0 字节。不需要数据库。
+ * 用法: java -cp <classpath> chat.util.OnlineFilterBenchmark [每组次数=20000]
+ */
+public final class OnlineFilterBenchmark {
+
+    private static final int USER_ID_RANGE = 1_000_000;
+    private static final int FRIENDS = 2_000;
+    private static final int[] ONLINE_COUNTS = {1_000, 10_000, 100_000};
+
+    private OnlineFilterBenchmark() {}
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Random random = new Random(42);
+        int[] friends = random.ints(FRIENDS, 1, USER_ID_RANGE).toArray();
+        List<Integer> friendList = Arrays.stream(friends).boxed().collect(Collectors.toList());
+        int[] dest = new int[FRIENDS];
+
+        System.out.println("在线用户数\t位图(ns/次)\t位图(B/次)\t原Map+stream(ns/次)\t原Map+stream(B/次)\t在线好友数");
+        for (int onlineCount : ONLINE_COUNTS) {
+            ConcurrentIntBitSet bitmap = new ConcurrentIntBitSet(1 << 16);
+            ConcurrentMap<Integer, CopyOnWriteArrayList<Object>> sessions = new ConcurrentHashMap<>();
+            for (int i = 0; i < onlineCount; i++) {
+                int userId = 1 + random.nextInt(USER_ID_RANGE);
+                bitmap.add(userId);
+                sessions.computeIfAbsent(userId, k -> new CopyOnWriteArrayList<>()).add(new Object());
+            }
+
+            // 预热；sink 防止 JIT 把结果未被使用的调用整个消除
+            long sink = 0;
+            for (int i = 0; i < iterations; i++) {
+                sink += bitmap.filter(friends, dest);
+                sink += legacyFilter(sessions, friendList).size();
+            }
+
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < iterations; i++) {
+                found = bitmap.filter(friends, dest);
+                sink += found;
+            }
+            double bitmapNanos = (double) (System.nanoTime() - start) / iterations;
+            double bitmapBytes = (double) (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / iterations;
+
+            allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += legacyFilter(sessions, friendList).size();
+            }
+            double legacyNanos = (double) (System.nanoTime() - start) / iterations;
+            double legacyBytes = (double) (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / iterations;
+
+            System.out.printf("%d\t%.0f\t%.1f\t%.0f\t%.1f\t%d%n", onlineCount, bitmapNanos, bitmapBytes, legacyNanos, legacyBytes, found);
+            if (sink == Long.MIN_VALUE) {
+                System.out.println(sink);
+            }
+        }
+    }
+
+    /**
+     * 原先的 getOnlineContactIds：逐个 containsKey/get/isEmpty，结果装箱收集
+     */
+    private static List<Integer> legacyFilter(ConcurrentMap<Integer, CopyOnWriteArrayList<Object>> sessions, List<Integer> contactIds) {
+        return contactIds.stream()
+                .filter(id -> sessions.containsKey(id) && !sessions.get(id).isEmpty())
+                .collect(Collectors.toList());
+    }
+}